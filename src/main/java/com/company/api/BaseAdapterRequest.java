@@ -23,6 +23,8 @@ public class BaseAdapterRequest implements IAdapterRequest {
 
   protected long limit;
 
+  protected ISchemaMapping schemaMapping;
+
   public BaseAdapterRequest() {
   }
 
@@ -4,13 +4,16 @@ import com.company.common.ContentType;
 import com.google.protobuf.Message;
 import lombok.NonNull;
 
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 /**
  * All Adapters will implement this.  The constructor for an implementation will take an
  * instance of BaseAdapterConfig.
  */
-public interface IAdapter {
+public interface IAdapter extends Closeable {
 
   /**
    * Get the configuration
@@ -42,6 +45,14 @@ public interface IAdapter {
   IAdapterResponse createTableEntry(Message record, ContentType contentType, ISchemaMapping schemaMapping)
     throws Exception;
 
+  /**
+   * Create many table entries after applying a mapping, several of them at once
+   *
+   * @return one response per record, in the order of the records
+   */
+  List<IAdapterResponse> createTableEntries(List<Message> records, ContentType contentType,
+                                            ISchemaMapping schemaMapping);
+
   /**
    * Update a table entry after applying a mapping
    *
@@ -49,4 +60,47 @@ public interface IAdapter {
    */
   IAdapterResponse updateTableEntry(Message record, ContentType contentType, ISchemaMapping schemaMapping)
     throws Exception;
+
+  /**
+   * Update a table entry after applying a mapping, sending only the fields that differ from the previous record
+   *
+   * @throws Exception
+   */
+  IAdapterResponse updateTableEntry(Message record, Message previousRecord, ContentType contentType,
+                                    ISchemaMapping schemaMapping) throws Exception;
+
+  /**
+   * Non-blocking variant of getTableEntries. The returned future completes once all pages went to the consumer.
+   */
+  CompletableFuture<IAdapterResponse> getTableEntriesAsync(IAdapterRequest request, Consumer consumer);
+
+  /**
+   * Non-blocking variant of getTableEntry
+   */
+  CompletableFuture<IAdapterResponse> getTableEntryAsync(IAdapterRequest request, String key);
+
+  /**
+   * Non-blocking variant of createTableEntry
+   */
+  CompletableFuture<IAdapterResponse> createTableEntryAsync(Message record, ContentType contentType,
+                                                            ISchemaMapping schemaMapping);
+
+  /**
+   * Non-blocking variant of updateTableEntry
+   */
+  CompletableFuture<IAdapterResponse> updateTableEntryAsync(Message record, ContentType contentType,
+                                                            ISchemaMapping schemaMapping);
+
+  /**
+   * Non-blocking variant of updateTableEntry with the previous record
+   */
+  CompletableFuture<IAdapterResponse> updateTableEntryAsync(Message record, Message previousRecord,
+                                                            ContentType contentType, ISchemaMapping schemaMapping);
+
+  /**
+   * Release the connections and any other resources held by the adapter.
+   * The adapter must not be used after it has been closed.
+   */
+  @Override
+  void close();
 }
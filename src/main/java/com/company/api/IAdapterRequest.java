@@ -35,4 +35,11 @@ public interface IAdapterRequest {
   long getLimit();
 
   void setLimit(long limit);
+
+  /**
+   * The mapping that will be applied to the entries, if known. Lets adapters read only the fields it uses.
+   */
+  ISchemaMapping getSchemaMapping();
+
+  void setSchemaMapping(ISchemaMapping schemaMapping);
 }
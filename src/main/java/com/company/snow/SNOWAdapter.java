@@ -4,18 +4,27 @@ import com.company.api.IAdapter;
 import com.google.protobuf.Message;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.*;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -25,14 +34,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,10 +62,98 @@ import java.util.regex.Pattern;
 public class SNOWAdapter implements IAdapter {
   private static final String BEARER_TOKEN = "Bearer ";
   private static final String BASIC_TOKEN = "Basic ";
+  private static final int DEFAULT_PAGE_SIZE = 200;
+  private static final int RELATED_PAGE_SIZE = 10000;
+  private static final int MAX_MAPPERS = 64;
+  // cookies holding the authenticated session on a ServiceNow instance
+  private static final Set<String> SESSION_COOKIES = new HashSet<>(Arrays.asList("JSESSIONID", "glide_session_store"));
+  private static final RequestConfig COOKIE_REQUEST_CONFIG = RequestConfig.custom()
+    .setCookieSpec(CookieSpecs.STANDARD)
+    .build();
+  // writes neither send nor store the session cookie, the instance wants a CSRF token for writes made with it
+  static final RequestConfig NO_COOKIE_REQUEST_CONFIG = RequestConfig.custom()
+    .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+    .build();
+
+  // Autodesk specific: the catalog item of Request Items by instance uri, with the time its lookup started
+  private static final Map<String, Pair<Long, CompletableFuture<Optional<String>>>> catalogItemIds =
+    new ConcurrentHashMap<>();
 
   @Getter
   private final SNOWAdapterConfig adapterConfig;
 
+  // one pooled client per adapter, so pages and join lookups reuse open TCP/TLS connections
+  private final CloseableHttpClient httpClient;
+  private final SNOWRateLimiter rateLimiter;
+  // session cookies set by the instance, shared by the sync and the async client
+  private final BasicCookieStore cookieStore = new BasicCookieStore();
+  private final Optional<SNOWTokenManager> tokenManager;
+
+  // non-blocking engine and the small pool that parses and joins its pages, both created on first async call
+  private CloseableHttpAsyncClient asyncHttpClient;
+  private ExecutorService asyncWorkerExecutor;
+  // runs the secondary lookups of a page concurrently, created on first use
+  private ExecutorService joinExecutor;
+  private SNOWBatcher batcher; // with batchLookups or batchCreates, created on first use
+  private ExecutorService bulkExecutor; // runs the batched creates of createTableEntries, created on first use
+  private SNOWUpdateQueue updateQueue; // with writeBehindUpdates, created on first use
+  private SNOWKnownState knownState; // with diffUpdates, created on first use
+  // referenced users, groups and CIs by table and requested fields, shared by all pages read by the adapter
+  private final Map<String, SNOWReferenceCache> referenceCaches = new ConcurrentHashMap<>();
+  // mappers by mapper class, content type and field mappings, see getMapper
+  private final Map<List<Object>, Object> mappers = Collections.synchronizedMap(
+    new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+        return size() > MAX_MAPPERS;
+      }
+    });
+  // comments already read, by requested fields
+  private final Map<String, SNOWJournalStore> journalStores = new ConcurrentHashMap<>();
+
+  /**
+   * Runs an HTTP request and returns the adapter response with the next pagination link.
+   * Lets the blocking and the non-blocking API share the same request building and response handling.
+   */
+  @FunctionalInterface
+  private interface HttpExecutor {
+    CompletableFuture<Pair<IAdapterResponse, String>> execute(HttpRequestBase httpRequest);
+  }
+
+  /**
+   * Reads the final response of executeWithRetry, before its connection goes back to the pool
+   */
+  @FunctionalInterface
+  private interface ResponseReader<T> {
+    /**
+     * @param sentMillis when the request that got this response was sent, after any rate limiting wait
+     */
+    T read(CloseableHttpResponse httpResponse, long sentMillis) throws Exception;
+  }
+
+  /**
+   * Counts the bytes of the response body read by the parser
+   */
+  private static class CountingEntity extends HttpEntityWrapper {
+    private CountingInputStream content;
+
+    CountingEntity(HttpEntity wrappedEntity) {
+      super(wrappedEntity);
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      if (content == null) {
+        content = new CountingInputStream(super.getContent());
+      }
+      return content;
+    }
+
+    long getByteCount() {
+      return content == null ? 0 : content.getByteCount();
+    }
+  }
+
   private static Map<FilterOperator, String> operatorMap = new HashMap();
 
   static {
@@ -87,6 +197,94 @@ public class SNOWAdapter implements IAdapter {
 
   public SNOWAdapter(SNOWAdapterConfig adapterConfig, Consumer consumer) {
     this.adapterConfig = adapterConfig;
+    this.httpClient = createHttpClient(adapterConfig, cookieStore);
+    this.rateLimiter = SNOWRateLimiter.get(adapterConfig);
+    this.tokenManager = adapterConfig.getRefreshToken() != null ?
+      Optional.of(new SNOWTokenManager(adapterConfig, httpClient)) : Optional.empty();
+    if (adapterConfig.getPrewarmConnections() > 0) {
+      prewarmConnections(adapterConfig.getPrewarmConnections());
+    }
+  }
+
+  private static CloseableHttpClient createHttpClient(SNOWAdapterConfig adapterConfig, CookieStore cookieStore) {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(adapterConfig.getMaxConnectionsTotal());
+    connectionManager.setDefaultMaxPerRoute(adapterConfig.getMaxConnectionsPerRoute());
+
+    long keepAliveMillis = adapterConfig.getConnectionKeepAliveMillis();
+    return HttpClientBuilder.create()
+      .setConnectionManager(connectionManager)
+      .setKeepAliveStrategy(keepAliveStrategy(keepAliveMillis))
+      .evictExpiredConnections()
+      .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+      .setDefaultCookieStore(cookieStore)
+      .setDefaultRequestConfig(COOKIE_REQUEST_CONFIG)
+      .build();
+  }
+
+  private static ConnectionKeepAliveStrategy keepAliveStrategy(long defaultKeepAliveMillis) {
+    return (response, context) -> {
+      long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return serverKeepAlive > 0 ? serverKeepAlive : defaultKeepAliveMillis;
+    };
+  }
+
+  private synchronized CloseableHttpAsyncClient getAsyncHttpClient() {
+    if (asyncHttpClient == null) {
+      IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+        .setIoThreadCount(getAdapterConfig().getAsyncIoThreads())
+        .build();
+      asyncHttpClient = HttpAsyncClients.custom()
+        .setDefaultIOReactorConfig(ioReactorConfig)
+        .setMaxConnTotal(getAdapterConfig().getMaxConnectionsTotal())
+        .setMaxConnPerRoute(getAdapterConfig().getMaxConnectionsPerRoute())
+        .setKeepAliveStrategy(keepAliveStrategy(getAdapterConfig().getConnectionKeepAliveMillis()))
+        .setDefaultCookieStore(cookieStore)
+        .setDefaultRequestConfig(COOKIE_REQUEST_CONFIG)
+        .build();
+      asyncHttpClient.start();
+    }
+    return asyncHttpClient;
+  }
+
+  private synchronized ExecutorService getAsyncWorkerExecutor() {
+    if (asyncWorkerExecutor == null) {
+      asyncWorkerExecutor = Executors.newFixedThreadPool(getAdapterConfig().getAsyncWorkerThreads());
+    }
+    return asyncWorkerExecutor;
+  }
+
+  /**
+   * Open up to count connections to the instance in parallel, so that the first pages do not pay for the handshakes.
+   * Failures are only logged, the connections will then be opened lazily.
+   */
+  public void prewarmConnections(int count) {
+    int connections = Math.min(count, getAdapterConfig().getMaxConnectionsPerRoute());
+    if (connections <= 0) {
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(connections);
+    try {
+      List<Future<Integer>> futures = new ArrayList<>(connections);
+      for (int i = 0; i < connections; i++) {
+        futures.add(executor.submit(() -> {
+          HttpHead headRequest = new HttpHead(getAdapterConfig().getUri());
+          try (CloseableHttpResponse response = httpClient.execute(headRequest)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+          }
+        }));
+      }
+      for (Future<Integer> future : futures) {
+        future.get();
+      }
+      log.info("Prewarmed {} connections to {}", connections, getAdapterConfig().getUri());
+    } catch (Exception e) {
+      log.warn("Failed to prewarm connections to " + getAdapterConfig().getUri(), e);
+    } finally {
+      executor.shutdown();
+      cookieStore.clear(); // the HEAD requests are not authenticated, neither is any session they opened
+    }
   }
 
   @Override
@@ -94,6 +292,39 @@ public class SNOWAdapter implements IAdapter {
     return getAdapterConfig();
   }
 
+  @Override
+  public void close() {
+    // queued updates are sent before the clients close, outside of the lock their requests may need
+    SNOWUpdateQueue queue;
+    synchronized (this) {
+      queue = updateQueue;
+    }
+    if (queue != null) {
+      queue.drain(getAdapterConfig().getUpdateCoalesceWindowMillis() + 30000);
+    }
+    closeClients();
+  }
+
+  private synchronized void closeClients() {
+    try {
+      httpClient.close();
+      if (asyncHttpClient != null) {
+        asyncHttpClient.close();
+      }
+    } catch (IOException e) {
+      log.error("Failed to close CloseableHttpClient in SNOWAdapter", e);
+    }
+    if (asyncWorkerExecutor != null) {
+      asyncWorkerExecutor.shutdown();
+    }
+    if (joinExecutor != null) {
+      joinExecutor.shutdown();
+    }
+    if (bulkExecutor != null) {
+      bulkExecutor.shutdown();
+    }
+  }
+
   @Override
   public IAdapterResponse getTableEntries(IAdapterRequest request, Consumer consumer) {
     String contentTypeName = request.getContentType().getName();
@@ -110,48 +341,101 @@ public class SNOWAdapter implements IAdapter {
     log.info("Start date: " + request.getStartDate());
     log.info("End date: " + request.getEndDate());
 
+    if (getAdapterConfig().isStreamingParse() && consumer != null && !hasSecondaryEntities(request)) {
+      return streamTableEntries(tableName, request, consumer);
+    }
+
     BaseAdapterResponse response = new BaseAdapterResponse();
     AtomicLong counter = new AtomicLong();
     try {
-      String nextUrlStr = null;
-      do {
-        Pair<Optional<JSONObject>, String> resp;
-        resp = getTableEntriesIncrementally(tableName, nextUrlStr, request);
-        nextUrlStr = null;
-        if (resp.getLeft().isPresent()) {
-          response.setJSONObject(resp.getLeft().get());
-          JSONArray entries;
-          if (resp.getLeft().get().get("result") instanceof JSONObject) {
-            JSONArray jsonArray = new JSONArray();
-            jsonArray.add(resp.getLeft().get().get("result"));
-            entries = jsonArray;
-          } else {
-            entries = (JSONArray) resp.getLeft().get().get("result");
-          }
-          // TODO: to be removed when all secondary entities are read separatelly
-          if (contentTypeName.equals(CONTENT_TYPE_INCIDENT)) {
-            fetchAndJoinCommentsForEntries(entries);
-          }
-          if (request.getContentType().hasAncestor(CONTENT_TYPE_TICKET)) {
-            fetchAndJoinCMDB(entries);
-            fetchAndJoinAssignmentGroups(entries);
-            fetchAndJoinUsers(entries);
+      if (getAdapterConfig().getPartitions() > 1 && request.getLimit() <= 0 && isTableApi(tableName) &&
+        !isKeysetPagination(tableName, request) && !isSorted(request)) {
+        return getTableEntriesPartitioned(tableName, request, consumer);
+      } else if (getAdapterConfig().getPrefetchPages() > 0) {
+        // pipelined: the following pages download while the current one is joined and consumed
+        try (SNOWPagePrefetcher prefetcher = new SNOWPagePrefetcher(tableName, getAdapterConfig().getPrefetchPages(),
+          nextUrlStr -> getTableEntriesIncrementally(tableName, nextUrlStr, request))) {
+          Pair<Optional<JSONObject>, String> resp;
+          while ((resp = prefetcher.next()) != null) {
+            if (resp.getLeft().isPresent() && !processPage(resp.getLeft().get(), request, consumer, response, counter)) {
+              break;
+            }
           }
-          if (contentTypeName.equals(CONTENT_TYPE_REQUEST)) {
-            fetchAndJoinItemsForRequests(entries);
+        }
+      } else {
+        String nextUrlStr = null;
+        do {
+          Pair<Optional<JSONObject>, String> resp;
+          resp = getTableEntriesIncrementally(tableName, nextUrlStr, request);
+          nextUrlStr = null;
+          if (resp.getLeft().isPresent()) {
+            if (!processPage(resp.getLeft().get(), request, consumer, response, counter)) {
+              break;
+            }
+            nextUrlStr = resp.getRight();
           }
+        } while (nextUrlStr != null);
+      }
+    } catch (Exception e) {
+      log.error("Exception in SNOWAdapter", e);
+      BaseAdapterResponse exceptionResponse = new BaseAdapterResponse();
+      exceptionResponse.setDone(true);
+      exceptionResponse.setRequestStatus(RequestStatus.Failed);
+      exceptionResponse.setStatusMessage(e.getMessage());
+      return exceptionResponse;
+    }
 
-          if (request.getLimit() > 0 && counter.get() >= request.getLimit()) {
-            // stop paginating. SNOW API uses limit as limit per page, not total.
-            break;
-          }
+    response.setDone(true);
+    return response;
+  }
 
-          if (consumer != null) {
-            counter.incrementAndGet();
-            entries.forEach(consumer::accept);
-          }
-          nextUrlStr = resp.getRight();
+  /**
+   * Pages of content types without joins go straight from the socket to the consumer, one record at a time.
+   */
+  private IAdapterResponse streamTableEntries(String tableName, IAdapterRequest request, Consumer consumer) {
+    long pageCounter = 0;
+    AtomicLong recordCounter = new AtomicLong();
+    try {
+      String nextUrlStr = null;
+      do {
+        if (request.getLimit() > 0 && recordCounter.get() >= request.getLimit()) {
+          // stop paginating. SNOW API uses limit as limit per page, not total.
+          break;
         }
+        Optional<HttpGet> recordsRequest = buildTableEntriesRequest(tableName, nextUrlStr, request);
+        if (!recordsRequest.isPresent()) {
+          break;
+        }
+        setRequestHeaders(recordsRequest.get());
+        URI pageUri = recordsRequest.get().getURI();
+        boolean keyset = isKeysetPagination(tableName, request);
+        Pair<Long, String> page = executeWithRetry(recordsRequest.get(), (httpResponse, sentMillis) -> {
+          int statusCode = httpResponse.getStatusLine().getStatusCode();
+          if (statusCode != HttpStatus.SC_OK) {
+            throw new IOException("HTTP error: " + statusCode + EntityUtils.toString(httpResponse.getEntity()));
+          }
+          JSONObject[] lastEntry = new JSONObject[1]; // read before the consumer gets the entry
+          long count = SNOWJsonStreamReader.readResult(httpResponse.getEntity().getContent(), entry -> {
+            if (keyset) {
+              lastEntry[0] = new JSONObject();
+              lastEntry[0].put("sys_updated_on", entry.get("sys_updated_on"));
+              lastEntry[0].put("sys_id", entry.get("sys_id"));
+            }
+            if (request.getLimit() > 0 && recordCounter.get() >= request.getLimit()) {
+              return; // the page size is not the limit once it adapts
+            }
+            recordCounter.incrementAndGet();
+            recordKnownState(request.getContentType(), Collections.singletonList(entry));
+            consumer.accept(entry);
+          });
+          String nextLink = keyset ?
+            SNOWKeysetPagination.nextPage(pageUri, count, lastEntry[0], getUserTimeZone()).map(URI::toString)
+              .orElse(null) :
+            getNextLinkFromHeaders(httpResponse);
+          return new ImmutablePair<>(count, nextLink);
+        });
+        nextUrlStr = page.getRight();
+        pageCounter++;
       } while (nextUrlStr != null);
     } catch (Exception e) {
       log.error("Exception in SNOWAdapter", e);
@@ -162,39 +446,241 @@ public class SNOWAdapter implements IAdapter {
       return exceptionResponse;
     }
 
+    log.info("Streamed {} entries of {} in {} pages", recordCounter.get(), tableName, pageCounter);
+    BaseAdapterResponse response = new BaseAdapterResponse();
     response.setDone(true);
     return response;
   }
 
+  /**
+   * Ranges of sys_created_on,sys_id are fetched in concurrent partitions and each partition joins its own pages.
+   * The consumer is called by one partition at a time.
+   */
+  private IAdapterResponse getTableEntriesPartitioned(String tableName, IAdapterRequest request, Consumer consumer)
+    throws Exception {
+    Optional<HttpGet> firstRequest = buildTableEntriesRequest(tableName, null, request);
+    if (!firstRequest.isPresent()) {
+      return BaseAdapterResponse.successResponse(null, null);
+    }
+
+    Object consumerLock = new Object();
+    Consumer partitionConsumer = consumer == null ? null : entry -> {
+      synchronized (consumerLock) {
+        consumer.accept(entry);
+      }
+    };
+
+    SNOWPartitionedReader reader = new SNOWPartitionedReader(getAdapterConfig().getUri(),
+      getAdapterConfig().getPartitions(), getAdapterConfig().getMaxConcurrentRequestsPerInstance(), getUserTimeZone());
+    long pages = reader.read(SNOWPartitionedReader.withStableOrder(firstRequest.get().getURI()),
+      this::getPageWithLastLink,
+      page -> processPage(page, request, partitionConsumer, new BaseAdapterResponse(), new AtomicLong()));
+    log.info("Read {} pages of {}", pages, tableName);
+
+    return BaseAdapterResponse.successResponse(null, null);
+  }
+
+  /**
+   * @return the page and its rel="last" pagination link
+   */
+  private Pair<Optional<JSONObject>, String> getPageWithLastLink(URI pageUri) throws Exception {
+    HttpGet pageRequest = new HttpGet(pageUri);
+    setRequestHeaders(pageRequest);
+    return executeWithRetry(pageRequest, (httpResponse, sentMillis) -> {
+      int statusCode = httpResponse.getStatusLine().getStatusCode();
+      if (statusCode != HttpStatus.SC_OK) {
+        throw new IOException("HTTP error: " + statusCode + EntityUtils.toString(httpResponse.getEntity()));
+      }
+      JSONObject page = getJsonObjectFromResponse(httpResponse);
+      return new ImmutablePair<>(Optional.of(page), getLinkFromHeaders(httpResponse, "last"));
+    });
+  }
+
+  private static boolean isTableApi(String tableName) {
+    return !tableName.equals(TABLE_CATALOG) && !tableName.equals(TABLE_CATEGORY) && !tableName.equals(TABLE_ITEM);
+  }
+
+  /**
+   * @return the columns holding the ids that the secondary joins of the read look up
+   */
+  private static List<String> getJoinKeys(ContentType contentType, Optional<SNOWFieldProjection> projection) {
+    List<String> joinKeys = new ArrayList<>();
+    for (SNOWJoinRegistry.JoinDefinition join : SNOWJoinRegistry.getRequiredJoins(contentType, projection)) {
+      if (!joinKeys.contains(join.getEntriesIdKey())) {
+        joinKeys.add(join.getEntriesIdKey());
+      }
+    }
+    return joinKeys;
+  }
+
+  private static boolean hasSecondaryEntities(IAdapterRequest request) {
+    Optional<SNOWFieldProjection> projection = SNOWFieldProjection.of(request.getSchemaMapping());
+    return !SNOWJoinRegistry.getRequiredJoins(request.getContentType(), projection).isEmpty();
+  }
+
+  /**
+   * Joins the secondary entities into one page of entries and hands the entries to the consumer.
+   * @return false if pagination must stop
+   */
+  private boolean processPage(JSONObject page, IAdapterRequest request, Consumer consumer,
+                              BaseAdapterResponse response, AtomicLong counter) {
+    response.setJSONObject(page);
+    JSONArray entries;
+    if (page.get("result") instanceof JSONObject) {
+      JSONArray jsonArray = new JSONArray();
+      jsonArray.add(page.get("result"));
+      entries = jsonArray;
+    } else {
+      entries = (JSONArray) page.get("result");
+    }
+    recordKnownState(request.getContentType(), entries); // before the joins append to the entries
+    Optional<SNOWFieldProjection> projection = SNOWFieldProjection.of(request.getSchemaMapping());
+    // TODO: to be removed when all secondary entities are read separatelly
+    List<SNOWJoinRegistry.JoinDefinition> requiredJoins =
+      SNOWJoinRegistry.getRequiredJoins(request.getContentType(), projection);
+    // the dot-walked columns are in sysparm_fields only when the read requests its columns
+    Map<String, String> dotWalked = isProjected(request, projection) ?
+      getDotWalkedReferences(requiredJoins, projection) : new LinkedHashMap<>();
+    joinDotWalkedEntries(entries, dotWalked, projection);
+    requiredJoins.removeIf(join -> dotWalked.containsValue(join.getAppendKey()));
+    fetchAndJoinEntries(entries, planJoins(entries, requiredJoins, projection));
+
+    if (request.getLimit() > 0 && counter.get() >= request.getLimit()) {
+      // stop paginating. SNOW API uses limit as limit per page, not total.
+      return false;
+    }
+
+    if (consumer != null) {
+      counter.incrementAndGet();
+      entries.forEach(consumer::accept);
+    }
+    return true;
+  }
+
   @Override
   public IAdapterResponse getTableEntries(IAdapterRequest request) {
     return getTableEntries(request, null);
   }
 
+  /**
+   * Pages are fetched without blocking a thread; joins and the consumer run on the adapter's async worker pool.
+   */
+  @Override
+  public CompletableFuture<IAdapterResponse> getTableEntriesAsync(IAdapterRequest request, Consumer consumer) {
+    String contentTypeName = request.getContentType().getName();
+    String tableName = contentTypeToSnowTable.get(contentTypeName);
+    if (tableName == null) {
+      return CompletableFuture.completedFuture(BaseAdapterResponse.failureResponse("Invalid contentType " + contentTypeName));
+    }
+
+    BaseAdapterResponse response = new BaseAdapterResponse();
+    return getTableEntriesAsync(tableName, null, request, consumer, response, new AtomicLong())
+      .exceptionally(e -> {
+        log.error("Exception in SNOWAdapter", e);
+        return BaseAdapterResponse.failureResponse(e.getMessage());
+      });
+  }
+
+  private CompletableFuture<IAdapterResponse> getTableEntriesAsync(String tableName, String nextUrlStr,
+                                                                   IAdapterRequest request, Consumer consumer,
+                                                                   BaseAdapterResponse response, AtomicLong counter) {
+    Optional<HttpGet> recordsRequest;
+    try {
+      recordsRequest = buildTableEntriesRequest(tableName, nextUrlStr, request);
+    } catch (URISyntaxException e) {
+      return CompletableFuture.completedFuture(BaseAdapterResponse.failureResponse(e.getMessage()));
+    }
+    if (!recordsRequest.isPresent()) {
+      response.setDone(true);
+      return CompletableFuture.completedFuture(response);
+    }
+
+    return executePaginatedRequestAsync(recordsRequest.get())
+      .thenApplyAsync(pair -> {
+        JSONObject page = pair.getLeft().getJSONObject();
+        try {
+          // before the joins add to the entries
+          String nextLink = getNextPageUrl(tableName, request, recordsRequest.get().getURI(), pair);
+          if (page != null && processPage(page, request, consumer, response, counter)) {
+            return nextLink;
+          }
+        } catch (URISyntaxException e) {
+          log.error("Invalid next page URI for " + tableName, e);
+        }
+        return null;
+      }, getAsyncWorkerExecutor())
+      .thenCompose(nextLink -> {
+        if (nextLink == null) {
+          response.setDone(true);
+          return CompletableFuture.completedFuture(response);
+        }
+        return getTableEntriesAsync(tableName, nextLink, request, consumer, response, counter);
+      });
+  }
+
   @Override
   public IAdapterResponse getTableEntry(IAdapterRequest request, String key) {
+    return getTableEntry(request, key, this::executeNow).join();
+  }
+
+  @Override
+  public CompletableFuture<IAdapterResponse> getTableEntryAsync(IAdapterRequest request, String key) {
+    return getTableEntry(request, key, this::executePaginatedRequestAsync);
+  }
+
+  private CompletableFuture<IAdapterResponse> getTableEntry(IAdapterRequest request, String key,
+                                                            HttpExecutor executor) {
     String contentTypeName = request.getContentType().getName();
     String tableName = contentTypeToSnowTable.get(contentTypeName);
     if (tableName == null) {
-      return BaseAdapterResponse.failureResponse("Invalid contentType " + contentTypeName);
+      return CompletableFuture.completedFuture(BaseAdapterResponse.failureResponse("Invalid contentType " + contentTypeName));
     }
 
+    String api;
     switch (contentTypeName) {
       case CONTENT_TYPE_SERVICE_CATALOG:
       case CONTENT_TYPE_SERVICE_CATALOG_CATEGORY:
       case CONTENT_TYPE_SERVICE_CATALOG_ITEM:
-        return getScSingleTableEntry(tableName, key);
+        api = "sn_sc/servicecatalog";
+        break;
       default:
-        return getSingleTableEntry(tableName, key);
+        api = "now/table";
     }
+    return executor.execute(singleTableEntryRequest(api, tableName, key)).thenApply(pair -> {
+      JSONObject page = pair.getLeft().getJSONObject();
+      if (page != null && page.get("result") instanceof JSONObject) {
+        recordKnownState(request.getContentType(), Collections.singletonList(page.get("result")));
+      }
+      return pair.getLeft();
+    });
   }
 
   IAdapterResponse executeRequest(HttpRequestBase httpRequest) {
     return executePaginatedRequest(httpRequest).getLeft();
   }
 
-  private Pair<IAdapterResponse, String> executePaginatedRequest(HttpRequestBase httpRequest) {
-    if (this.getAdapterConfig().getAccessToken() != null)
+  private CompletableFuture<Pair<IAdapterResponse, String>> executeNow(HttpRequestBase httpRequest) {
+    return CompletableFuture.completedFuture(executePaginatedRequest(httpRequest));
+  }
+
+  private void setRequestHeaders(HttpRequestBase httpRequest) {
+    if (tokenManager.isPresent() || this.getAdapterConfig().getAccessToken() != null) {
+      setAuthorizationHeader(httpRequest);
+    } else if (!getAdapterConfig().isSessionCookies() || !(httpRequest instanceof HttpGet) || !hasSessionCookie()) {
+      // writes keep Basic authentication, the instance wants a CSRF token for writes made with a session cookie
+      setAuthorizationHeader(httpRequest);
+    }
+    if (!(httpRequest instanceof HttpGet)) {
+      httpRequest.setConfig(NO_COOKIE_REQUEST_CONFIG);
+    }
+    httpRequest.setHeader(HttpHeaders.ACCEPT, "application/json");
+    httpRequest.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+  }
+
+  private void setAuthorizationHeader(HttpRequestBase httpRequest) {
+    if (tokenManager.isPresent())
+      httpRequest.setHeader(HttpHeaders.AUTHORIZATION, BEARER_TOKEN + tokenManager.get().getAccessToken());
+    else if (this.getAdapterConfig().getAccessToken() != null)
       httpRequest.setHeader(HttpHeaders.AUTHORIZATION, BEARER_TOKEN + this.getAdapterConfig().getAccessToken());
     else {
       String userAndPswd = getAdapterConfig().getUsername() + ":" + getAdapterConfig().getPassword();
@@ -202,61 +688,216 @@ public class SNOWAdapter implements IAdapter {
       String headerBase64 = Base64.getEncoder().encodeToString(bytesUserPswd);
       httpRequest.setHeader(HttpHeaders.AUTHORIZATION, BASIC_TOKEN + headerBase64);
     }
-    httpRequest.setHeader(HttpHeaders.ACCEPT, "application/json");
-    httpRequest.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+  }
 
-    String errorStr = null;
-    try (CloseableHttpClient httpclient = HttpClientBuilder.create().build()) {
-      CloseableHttpResponse httpResponse = httpclient.execute(httpRequest);
-      int statusCode = httpResponse.getStatusLine().getStatusCode();
-      if (statusCode == HttpStatus.SC_OK || statusCode == HttpStatus.SC_CREATED) {
-        JSONObject topObject = getJsonObjectFromResponse(httpResponse);
-        String nextLink = getNextLinkFromHeaders(httpResponse);
-        return new ImmutablePair<>(BaseAdapterResponse.successResponse(topObject, null), nextLink);
-      } else {
-        errorStr = "HTTP error: " + statusCode + EntityUtils.toString(httpResponse.getEntity());
-        log.error(errorStr);
-      }
+  private boolean hasSessionCookie() {
+    Date now = new Date();
+    return cookieStore.getCookies().stream()
+      .anyMatch(cookie -> SESSION_COOKIES.contains(cookie.getName()) && !cookie.isExpired(now));
+  }
+
+  /**
+   * Called when the instance answered 401: the session has expired or the access token was revoked
+   *
+   * @return true if the request now carries new credentials and can be sent again
+   */
+  private boolean reauthenticate(HttpRequestBase httpRequest) {
+    if (!httpRequest.containsHeader(HttpHeaders.AUTHORIZATION)) {
+      log.info("Session of {} expired, authenticating again", getAdapterConfig().getUri());
+      cookieStore.clear();
+      setAuthorizationHeader(httpRequest);
+      return true;
+    }
+    if (tokenManager.isPresent() && tokenManager.get().refresh()) {
+      setAuthorizationHeader(httpRequest);
+      return true;
+    }
+    return false;
+  }
+
+  private Pair<IAdapterResponse, String> executePaginatedRequest(HttpRequestBase httpRequest) {
+    return executePaginatedRequest(httpRequest, Optional.empty());
+  }
+
+  /**
+   * @param pageSizeController told the latency and size of the page, or the failure
+   */
+  private Pair<IAdapterResponse, String> executePaginatedRequest(HttpRequestBase httpRequest,
+                                                                 Optional<SNOWPageSizeController> pageSizeController) {
+    setRequestHeaders(httpRequest);
 
+    String errorStr = null;
+    try {
+      return executeWithRetry(httpRequest, (httpResponse, sentMillis) -> {
+        if (!pageSizeController.isPresent() || httpResponse.getEntity() == null) {
+          return toPaginatedResponse(httpResponse);
+        }
+        CountingEntity countingEntity = new CountingEntity(httpResponse.getEntity());
+        httpResponse.setEntity(countingEntity);
+        Pair<IAdapterResponse, String> pair = toPaginatedResponse(httpResponse);
+
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+        if (statusCode == HttpStatus.SC_OK) {
+          pageSizeController.get().onPage(System.currentTimeMillis() - sentMillis, countingEntity.getByteCount());
+        } else if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+          pageSizeController.get().onError(); // rate limiting (429) says nothing about the page size
+        }
+        return pair;
+      });
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      errorStr = "Interrupted in SNOWAdapter";
+      log.error(errorStr, e);
     } catch (IOException e) {
-      errorStr += "Failed to autoclose CloseableHttpClient in SNOWAdapter " + e.getMessage();
-      log.error("Failed to autoclose CloseableHttpClient in SNOWAdapter", e);
+      pageSizeController.ifPresent(SNOWPageSizeController::onError);
+      errorStr = "Failed to execute request in SNOWAdapter " + e.getMessage();
+      log.error("Failed to execute request in SNOWAdapter", e);
     } catch (Exception e) {
-      errorStr += "Exception in SNOWAdapter " +  e.getMessage();
+      errorStr = "Exception in SNOWAdapter " +  e.getMessage();
       log.error("Exception in SNOWAdapter", e);
     }
 
     return new ImmutablePair<>(BaseAdapterResponse.failureResponse(errorStr), null);
   }
 
-  private IAdapterResponse getSingleTableEntry(String api, String snowTable, String id) {
+  /**
+   * Sends the request within the rate limit of the instance and retries while ServiceNow answers 429, or 503 to an
+   * idempotent request.
+   * The final response is read before the connection goes back to the pool.
+   */
+  private <T> T executeWithRetry(HttpRequestBase httpRequest, ResponseReader<T> reader) throws Exception {
+    boolean reauthenticated = false;
+    for (int attempt = 0; ; attempt++) {
+      rateLimiter.acquire();
+      long sentMillis = System.currentTimeMillis();
+      Optional<Long> retryDelay;
+      try (CloseableHttpResponse httpResponse = httpClient.execute(httpRequest)) {
+        if (!reauthenticated && httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED &&
+          reauthenticate(httpRequest)) {
+          EntityUtils.consumeQuietly(httpResponse.getEntity());
+          reauthenticated = true;
+          attempt--; // not a rate limiting retry
+          continue;
+        }
+        retryDelay = rateLimiter.getRetryDelay(httpRequest, httpResponse, attempt);
+        if (!retryDelay.isPresent()) {
+          return reader.read(httpResponse, sentMillis);
+        }
+        EntityUtils.consumeQuietly(httpResponse.getEntity());
+      }
+      Thread.sleep(retryDelay.get());
+    }
+  }
+
+  private CompletableFuture<Pair<IAdapterResponse, String>> executePaginatedRequestAsync(HttpRequestBase httpRequest) {
+    setRequestHeaders(httpRequest);
+    return executePaginatedRequestAsync(httpRequest, 0, false);
+  }
+
+  private CompletableFuture<Pair<IAdapterResponse, String>> executePaginatedRequestAsync(HttpRequestBase httpRequest,
+                                                                                         int attempt,
+                                                                                         boolean reauthenticated) {
+    return SNOWRateLimiter.after(rateLimiter.reserve())
+      .thenCompose(ignored -> sendAsync(httpRequest))
+      .<CompletableFuture<Pair<IAdapterResponse, String>>>handleAsync((httpResponse, throwable) -> {
+        if (throwable != null) {
+          log.error("Exception in SNOWAdapter", throwable);
+          return CompletableFuture.completedFuture(new ImmutablePair<>(
+            BaseAdapterResponse.failureResponse("Exception in SNOWAdapter " + throwable.getMessage()), null));
+        }
+        if (!reauthenticated && httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED &&
+          reauthenticate(httpRequest)) {
+          EntityUtils.consumeQuietly(httpResponse.getEntity());
+          return executePaginatedRequestAsync(httpRequest, attempt, true);
+        }
+        Optional<Long> retryDelay = rateLimiter.getRetryDelay(httpRequest, httpResponse, attempt);
+        if (retryDelay.isPresent()) {
+          EntityUtils.consumeQuietly(httpResponse.getEntity());
+          return SNOWRateLimiter.after(retryDelay.get())
+            .thenCompose(ignored -> executePaginatedRequestAsync(httpRequest, attempt + 1, reauthenticated));
+        }
+        try {
+          return CompletableFuture.completedFuture(toPaginatedResponse(httpResponse));
+        } catch (Exception e) {
+          log.error("Exception in SNOWAdapter", e);
+          return CompletableFuture.completedFuture(new ImmutablePair<>(
+            BaseAdapterResponse.failureResponse("Exception in SNOWAdapter " + e.getMessage()), null));
+        }
+      }, getAsyncWorkerExecutor()) // parse off the I/O reactor threads, the response body is already buffered
+      .thenCompose(Function.identity());
+  }
+
+  private CompletableFuture<HttpResponse> sendAsync(HttpRequestBase httpRequest) {
+    CompletableFuture<HttpResponse> responseFuture = new CompletableFuture<>();
+    getAsyncHttpClient().execute(httpRequest, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse httpResponse) {
+        responseFuture.complete(httpResponse);
+      }
+
+      @Override
+      public void failed(Exception e) {
+        responseFuture.completeExceptionally(e);
+      }
+
+      @Override
+      public void cancelled() {
+        responseFuture.cancel(false);
+      }
+    });
+    return responseFuture;
+  }
+
+  private Pair<IAdapterResponse, String> toPaginatedResponse(HttpResponse httpResponse)
+    throws IOException, ParseException {
+    int statusCode = httpResponse.getStatusLine().getStatusCode();
+    if (statusCode == HttpStatus.SC_OK || statusCode == HttpStatus.SC_CREATED) {
+      JSONObject topObject = getJsonObjectFromResponse(httpResponse);
+      String nextLink = getNextLinkFromHeaders(httpResponse);
+      return new ImmutablePair<>(BaseAdapterResponse.successResponse(topObject, null), nextLink);
+    }
+    String errorStr = "HTTP error: " + statusCode + EntityUtils.toString(httpResponse.getEntity());
+    log.error(errorStr);
+    return new ImmutablePair<>(BaseAdapterResponse.failureResponse(errorStr), null);
+  }
+
+  private HttpGet singleTableEntryRequest(String api, String snowTable, String id) {
     String incidentsUri = getAdapterConfig().getUri() + "/api/" + api + "/" + snowTable + "/" + id;
-    HttpGet incidentsRequest = new HttpGet(incidentsUri);
-    return executeRequest(incidentsRequest);
+    return new HttpGet(incidentsUri);
   }
 
   IAdapterResponse getSingleTableEntry(String snowTable, String id) {
-    return getSingleTableEntry("now/table", snowTable, id);
+    return executeRequest(singleTableEntryRequest("now/table", snowTable, id));
   }
 
-  private IAdapterResponse getScSingleTableEntry(String snowTable, String id) {
-    return getSingleTableEntry("sn_sc/servicecatalog", snowTable, id);
+  @Override
+  public IAdapterResponse createTableEntry(Message record, ContentType contentType, ISchemaMapping schemaMapping) {
+    return createTableEntry(record, contentType, schemaMapping, this::executeNow).join();
   }
 
   @Override
-  public IAdapterResponse createTableEntry(Message record, ContentType contentType, ISchemaMapping schemaMapping) {
+  public CompletableFuture<IAdapterResponse> createTableEntryAsync(Message record, ContentType contentType,
+                                                                   ISchemaMapping schemaMapping) {
+    return createTableEntry(record, contentType, schemaMapping, this::executePaginatedRequestAsync);
+  }
+
+  private CompletableFuture<IAdapterResponse> createTableEntry(Message record, ContentType contentType,
+                                                               ISchemaMapping schemaMapping, HttpExecutor executor) {
     if (!contentType.isCreatable()) {
-      return BaseAdapterResponse.failureResponse("Content type " + contentType.getName() + " is not creatable");
+      return CompletableFuture.completedFuture(
+        BaseAdapterResponse.failureResponse("Content type " + contentType.getName() + " is not creatable"));
     }
     String snowTable = contentTypeToSnowTable.get(contentType.getName());
     if (snowTable == null) {
-      return BaseAdapterResponse.failureResponse("Unsupported content type: " + contentType.getName());
+      return CompletableFuture.completedFuture(
+        BaseAdapterResponse.failureResponse("Unsupported content type: " + contentType.getName()));
     }
 
     // TODO: assuming ticket content for now
     TicketContent ticketContent = (TicketContent) record;
 
-    SNOWTicketReverseMapper reverseMapper = new SNOWTicketReverseMapper(contentType, schemaMapping);
+    SNOWTicketReverseMapper reverseMapper = getMapper(SNOWTicketReverseMapper.class, contentType, schemaMapping,
+      () -> new SNOWTicketReverseMapper(contentType, schemaMapping));
     JSONObject jsonToCreate = reverseMapper.convert(ticketContent);
 
     log.info("Creation payload: " + jsonToCreate.toJSONString());
@@ -270,16 +911,25 @@ public class SNOWAdapter implements IAdapter {
       postingString = new StringEntity(jsonString);
     } catch (UnsupportedEncodingException e) {
       log.error("Failed to encode JSON", e);
-      return BaseAdapterResponse.failureResponse("Failed to encode JSON " + e.getMessage());
+      return CompletableFuture.completedFuture(
+        BaseAdapterResponse.failureResponse("Failed to encode JSON " + e.getMessage()));
     }
 
     createRequest.setEntity(postingString);
 
-    BaseAdapterResponse adapterResponse = (BaseAdapterResponse) executeRequest(createRequest);
+    // the catalog item of the Request Item is looked up, if not cached, while the Request is created
+    CompletableFuture<Optional<String>> catalogItemId = contentType.getName().equals(CONTENT_TYPE_REQUEST) ?
+      getCachedGenericServiceRequestId(executor) : CompletableFuture.completedFuture(Optional.empty());
 
-    if (adapterResponse.getRequestStatus().equals(RequestStatus.Succeeded) &&
-      adapterResponse.getJSONObject() != null) {
-      SNOWMapper mapper = new SNOWMapper(getAdapterConfig(), contentType, schemaMapping);
+    return executor.execute(createRequest).thenCompose(pair -> {
+      BaseAdapterResponse adapterResponse = (BaseAdapterResponse) pair.getLeft();
+      if (!adapterResponse.getRequestStatus().equals(RequestStatus.Succeeded) ||
+        adapterResponse.getJSONObject() == null) {
+        return CompletableFuture.completedFuture(adapterResponse);
+      }
+
+      SNOWMapper mapper = getMapper(SNOWMapper.class, contentType, schemaMapping,
+        () -> new SNOWMapper(getAdapterConfig(), contentType, schemaMapping));
       // TODO: what would be a better way to unwrap the json in key "result" the same way everywhere?
       // maybe a JSON to JSON mapper that is always chained to the adapter.
       JSONObject jsonObject = (JSONObject) adapterResponse.getJSONObject().get("result");
@@ -290,54 +940,297 @@ public class SNOWAdapter implements IAdapter {
 
       // Autodesk-specific side effects
       // TODO: create using contentType
-      if (contentType.getName().equals(CONTENT_TYPE_REQUEST)) {
-        // AM-2243 also create a Request Item
-        jsonToCreate.put("request", resultTicketContent.getId()); // associate Request Item with Request that just got created
-        getGenericServiceRequestId().ifPresent(catalogItem -> jsonToCreate.put("cat_item", catalogItem));
-        Optional<JSONObject> itemResult = createTableEntry(TABLE_SC_REQUEST_ITEMS, jsonToCreate.toJSONString());
-        // Autodesk specific: Link to default catalog item. This code will not do anything on other instances.
-        if (!itemResult.isPresent()) {
-          log.error("Failed to create SNOW Request Item for Request {}", resultTicketContent.getId());
-        }
+      if (!contentType.getName().equals(CONTENT_TYPE_REQUEST)) {
+        return CompletableFuture.completedFuture(adapterResponse);
       }
+      // AM-2243 also create a Request Item
+      jsonToCreate.put("request", resultTicketContent.getId()); // associate Request Item with Request that just got created
+      return catalogItemId
+        .thenCompose(catalogItem -> {
+          catalogItem.ifPresent(catalogItemSysId -> jsonToCreate.put("cat_item", catalogItemSysId));
+          return createTableEntry(TABLE_SC_REQUEST_ITEMS, jsonToCreate.toJSONString(), executor);
+        })
+        .thenApply(itemResult -> {
+          // Autodesk specific: Link to default catalog item. This code will not do anything on other instances.
+          if (!itemResult.isPresent()) {
+            log.error("Failed to create SNOW Request Item for Request {}", resultTicketContent.getId());
+          }
+          return adapterResponse;
+        });
+    });
+  }
+
+  /**
+   * Runs up to maxConcurrentCreates creates at once, on the non-blocking client or, with batchCreates, gathered in
+   * Batch API calls. A Request counts as one create with its Request Item.
+   */
+  @Override
+  public List<IAdapterResponse> createTableEntries(List<Message> records, ContentType contentType,
+                                                   ISchemaMapping schemaMapping) {
+    Semaphore permits = new Semaphore(Math.max(1, getAdapterConfig().getMaxConcurrentCreates()));
+    List<CompletableFuture<IAdapterResponse>> creates = new ArrayList<>(records.size());
+    for (Message record : records) {
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        log.error("Interrupted in SNOWAdapter", e);
+        creates.add(CompletableFuture.completedFuture(
+          BaseAdapterResponse.failureResponse("Interrupted in SNOWAdapter")));
+        continue;
+      }
+
+      CompletableFuture<IAdapterResponse> create;
+      try {
+        create = getAdapterConfig().isBatchCreates() ?
+          CompletableFuture.supplyAsync(() -> createTableEntry(record, contentType, schemaMapping,
+            httpRequest -> CompletableFuture.completedFuture(executeBatched(httpRequest, Optional.empty()))).join(),
+            getBulkExecutor()) :
+          createTableEntry(record, contentType, schemaMapping, this::executePaginatedRequestAsync);
+      } catch (RuntimeException e) {
+        create = new CompletableFuture<>();
+        create.completeExceptionally(e);
+      }
+      creates.add(create.whenComplete((response, throwable) -> permits.release()));
     }
 
-    return adapterResponse;
+    List<IAdapterResponse> responses = new ArrayList<>(creates.size());
+    for (CompletableFuture<IAdapterResponse> create : creates) {
+      responses.add(create.exceptionally(throwable -> {
+        log.error("Exception in SNOWAdapter", throwable);
+        return BaseAdapterResponse.failureResponse("Exception in SNOWAdapter " + throwable.getMessage());
+      }).join());
+    }
+    return responses;
+  }
+
+  private synchronized ExecutorService getBulkExecutor() {
+    if (bulkExecutor == null) {
+      bulkExecutor = Executors.newCachedThreadPool(); // at most maxConcurrentCreates threads, waiting on their batch
+    }
+    return bulkExecutor;
+  }
+
+  /**
+   * Mappers interpret their schema mapping when they are built, so they are built once per mapper class, content
+   * type and field mapping values, and reused by every create and update after that.
+   * This relies on the mappers keeping no state across convert and map calls, as they are shared by concurrent calls.
+   */
+  private <T> T getMapper(Class<T> mapperClass, ContentType contentType, ISchemaMapping schemaMapping,
+                          Supplier<T> mapperFactory) {
+    List<Object> key = Arrays.asList(mapperClass, contentType.getName(), getFingerprint(schemaMapping));
+    return mapperClass.cast(mappers.computeIfAbsent(key, ignored -> mapperFactory.get()));
+  }
+
+  /**
+   * FieldMapping has no value equality: the values the mappers read are copied instead, so that an equal mapping
+   * built again finds its mappers and a mapping changed in place gets new ones
+   */
+  private static List<List<String>> getFingerprint(ISchemaMapping schemaMapping) {
+    if (schemaMapping == null || schemaMapping.getFieldMappings() == null) {
+      return Collections.emptyList();
+    }
+    List<List<String>> fingerprint = new ArrayList<>(schemaMapping.getFieldMappings().size());
+    for (FieldMapping fieldMapping : schemaMapping.getFieldMappings()) {
+      Field field = fieldMapping.getField();
+      fingerprint.add(Arrays.asList(
+        field != null ? field.getFieldPath() : null,
+        field != null ? field.getFieldType() : null,
+        field != null ? field.getFieldValues() : null,
+        fieldMapping.getExternalFieldPath(),
+        fieldMapping.getExternalFieldType(),
+        fieldMapping.getExternalFieldValues(),
+        fieldMapping.getExternalDateFormat(),
+        fieldMapping.getFixedValue()));
+    }
+    return fingerprint;
   }
 
   @Override
   public IAdapterResponse updateTableEntry(Message record, ContentType contentType, ISchemaMapping schemaMapping) {
+    return updateTableEntry(record, null, contentType, schemaMapping, this::executeNow, true).join();
+  }
+
+  @Override
+  public IAdapterResponse updateTableEntry(Message record, Message previousRecord, ContentType contentType,
+                                           ISchemaMapping schemaMapping) {
+    return updateTableEntry(record, previousRecord, contentType, schemaMapping, this::executeNow, true).join();
+  }
+
+  @Override
+  public CompletableFuture<IAdapterResponse> updateTableEntryAsync(Message record, ContentType contentType,
+                                                                   ISchemaMapping schemaMapping) {
+    return updateTableEntry(record, null, contentType, schemaMapping, this::executePaginatedRequestAsync, false);
+  }
+
+  @Override
+  public CompletableFuture<IAdapterResponse> updateTableEntryAsync(Message record, Message previousRecord,
+                                                                   ContentType contentType,
+                                                                   ISchemaMapping schemaMapping) {
+    return updateTableEntry(record, previousRecord, contentType, schemaMapping, this::executePaginatedRequestAsync,
+      false);
+  }
+
+  /**
+   * @param previousRecord the record as last read by the caller, null to diff against the state known to the adapter
+   * @param blocking       true if the caller waits for the response, a write-behind update is then sent right away
+   */
+  private CompletableFuture<IAdapterResponse> updateTableEntry(Message record, Message previousRecord,
+                                                               ContentType contentType, ISchemaMapping schemaMapping,
+                                                               HttpExecutor executor, boolean blocking) {
     if (!contentType.isModifiable()) {
-      return BaseAdapterResponse.failureResponse("Content type " + contentType.getName() + " is not modifiable");
+      return CompletableFuture.completedFuture(
+        BaseAdapterResponse.failureResponse("Content type " + contentType.getName() + " is not modifiable"));
     }
     String snowTable = contentTypeToSnowTable.get(contentType.getName());
     if (snowTable == null) {
-      return BaseAdapterResponse.failureResponse("Unsupported content type: " + contentType.getName());
+      return CompletableFuture.completedFuture(
+        BaseAdapterResponse.failureResponse("Unsupported content type: " + contentType.getName()));
     }
     // TODO: assuming ticket content for now
     TicketContent ticketContent = (TicketContent) record;
-    ProtoToJsonMapper ticketToJsonMapper = new ProtoToJsonMapper(null);
+    // the schema mapping is an argument of each map call, one mapper serves them all
+    ProtoToJsonMapper ticketToJsonMapper = getMapper(ProtoToJsonMapper.class, contentType, null,
+      () -> new ProtoToJsonMapper(null));
     JSONObject jsonToEdit = ticketToJsonMapper.map(ticketContent, schemaMapping);
+
+    if (previousRecord != null) {
+      jsonToEdit = SNOWKnownState.diff(jsonToEdit, ticketToJsonMapper.map((TicketContent) previousRecord, schemaMapping));
+    } else if (getAdapterConfig().isDiffUpdates()) {
+      JSONObject changed = getKnownState().diffAndMerge(snowTable, ticketContent.getId(), jsonToEdit);
+      // the fields the update does not change are left to the instance, even if another writer changed them since
+      // the read (see diffUpdates); an update that changes nothing is sent whole rather than reported as written
+      jsonToEdit = changed.isEmpty() ? jsonToEdit : changed;
+    }
+    if (jsonToEdit.isEmpty()) {
+      log.info("No field of {} {} changed, not updated", snowTable, ticketContent.getId());
+      return CompletableFuture.completedFuture(BaseAdapterResponse.successResponse(null, "No field changed"));
+    }
     log.info("Update payload", jsonToEdit.toJSONString());
 
-    String incidentsUri = getAdapterConfig().getUri() + "/api/now/table/" + snowTable + "/" + ticketContent.getId();
-    HttpPut updateRequest = new HttpPut(incidentsUri);
+    if (getAdapterConfig().isWriteBehindUpdates()) {
+      return blocking ? getUpdateQueue().updateNow(snowTable, ticketContent.getId(), jsonToEdit) :
+        getUpdateQueue().update(snowTable, ticketContent.getId(), jsonToEdit);
+    }
+    return putTableEntry(snowTable, ticketContent.getId(), jsonToEdit,
+      previousRecord != null || getAdapterConfig().isDiffUpdates(), executor);
+  }
+
+  /**
+   * @param patch true if the fields are only the changed ones
+   */
+  private CompletableFuture<IAdapterResponse> putTableEntry(String snowTable, String sysId, JSONObject jsonToEdit,
+                                                            boolean patch, HttpExecutor executor) {
+    String incidentsUri = getAdapterConfig().getUri() + "/api/now/table/" + snowTable + "/" + sysId;
+    HttpEntityEnclosingRequestBase updateRequest = patch ? new HttpPatch(incidentsUri) : new HttpPut(incidentsUri);
     String jsonString = jsonToEdit.toJSONString();
     StringEntity postingString;
     try {
       postingString = new StringEntity(jsonString);
     } catch (UnsupportedEncodingException e) {
       log.error("Failed to encode JSON", e);
-      return BaseAdapterResponse.failureResponse("Failed to encode JSON " + e.getMessage());
+      return CompletableFuture.completedFuture(
+        BaseAdapterResponse.failureResponse("Failed to encode JSON " + e.getMessage()));
     }
 
     updateRequest.setEntity(postingString);
-    return executeRequest(updateRequest);
+    return executor.execute(updateRequest).thenApply(pair -> {
+      if (getAdapterConfig().isDiffUpdates() && pair.getLeft().getRequestStatus() != RequestStatus.Succeeded) {
+        getKnownState().forget(snowTable, sysId); // the fields merged in were not written
+      }
+      return pair.getLeft();
+    });
+  }
+
+  private synchronized SNOWUpdateQueue getUpdateQueue() {
+    if (updateQueue == null) {
+      updateQueue = new SNOWUpdateQueue(getAdapterConfig().getUpdateCoalesceWindowMillis(),
+        (snowTable, sysId, fields) -> putTableEntry(snowTable, sysId, fields, getAdapterConfig().isDiffUpdates(),
+          this::executePaginatedRequestAsync));
+    }
+    return updateQueue;
+  }
+
+  private synchronized SNOWKnownState getKnownState() {
+    if (knownState == null) {
+      knownState = new SNOWKnownState(getAdapterConfig().getKnownStateMaxEntries(),
+        getAdapterConfig().getKnownStateTtlMillis());
+    }
+    return knownState;
+  }
+
+  /**
+   * Keeps the fields of entries read from the table, updates of them then send only the fields that changed
+   */
+  private void recordKnownState(ContentType contentType, Collection<?> entries) {
+    String tableName = contentTypeToSnowTable.get(contentType.getName());
+    if (getAdapterConfig().isDiffUpdates() && tableName != null) {
+      SNOWKnownState state = getKnownState();
+      entries.forEach(entry -> state.record(tableName, (JSONObject) entry));
+    }
   }
 
   Pair<Optional<JSONObject>, String> getTableEntriesIncrementally(String tableName, String nextUrlStr,
                                                                   IAdapterRequest request) throws Exception {
+    Optional<HttpGet> recordsRequest = buildTableEntriesRequest(tableName, nextUrlStr, request);
+    if (!recordsRequest.isPresent()) {
+      return new ImmutablePair<>(Optional.empty(), null); // Nothing to do
+    }
+    Pair<IAdapterResponse, String> pair = executePaginatedRequest(recordsRequest.get(),
+      getPageSizeController(tableName, request));
+    return new ImmutablePair<>(Optional.ofNullable(pair.getLeft().getJSONObject()),
+      getNextPageUrl(tableName, request, recordsRequest.get().getURI(), pair));
+  }
+
+  /**
+   * Keyset pagination replaces the offsets when the request does not ask for its own ordering
+   */
+  private boolean isKeysetPagination(String tableName, IAdapterRequest request) {
+    return getAdapterConfig().isKeysetPagination() && isTableApi(tableName) && !isSorted(request);
+  }
+
+  private static boolean isSorted(IAdapterRequest request) {
+    return request.getSortDescList() != null && !request.getSortDescList().isEmpty();
+  }
+
+  /**
+   * @return the page after the one read: its rel="next" link, or the query for the entries after its last entry
+   */
+  private String getNextPageUrl(String tableName, IAdapterRequest request, URI pageUri,
+                                Pair<IAdapterResponse, String> pair) throws URISyntaxException {
+    JSONObject page = pair.getLeft().getJSONObject();
+    if (page == null || !isKeysetPagination(tableName, request)) {
+      return pair.getRight();
+    }
+    return SNOWKeysetPagination.nextPage(pageUri, page, getUserTimeZone()).map(URI::toString).orElse(null);
+  }
+
+  private TimeZone getUserTimeZone() {
+    return TimeZone.getTimeZone(getAdapterConfig().getUserTimeZone());
+  }
 
+  /**
+   * @return the controller sizing the pages of the table, empty if the page size is fixed
+   */
+  private Optional<SNOWPageSizeController> getPageSizeController(String tableName, IAdapterRequest request) {
+    if (!getAdapterConfig().isAdaptivePageSize() || request.getLimit() > 0 || !isTableApi(tableName)) {
+      return Optional.empty();
+    }
+    return Optional.of(SNOWPageSizeController.get(getAdapterConfig(), tableName, DEFAULT_PAGE_SIZE));
+  }
+
+  /**
+   * @return the current page size of each table this adapter read with adaptivePageSize, by instance uri and table
+   */
+  public Map<String, Integer> getPageSizes() {
+    return SNOWPageSizeController.getPageSizes(getAdapterConfig());
+  }
+
+  /**
+   * @return the request for one page of table entries, empty if there is nothing to fetch
+   */
+  private Optional<HttpGet> buildTableEntriesRequest(String tableName, String nextUrlStr, IAdapterRequest request)
+    throws URISyntaxException {
     String recordsUri;
     if (nextUrlStr == null || nextUrlStr.isEmpty()) {
       recordsUri = getAdapterConfig().getUri() + "/api/now/table/" + tableName;
@@ -348,7 +1241,7 @@ public class SNOWAdapter implements IAdapter {
           if (getAdapterConfig().getCatalogId() != null) {
             recordsUri = getAdapterConfig().getUri() + "/api/sn_sc/servicecatalog/catalogs" + "/" + getAdapterConfig().getCatalogId() + "/categories";
           } else {
-            return new ImmutablePair<>(Optional.empty(), null); // Nothing to do
+            return Optional.empty(); // Nothing to do
           }
         } else if (tableName.equals(TABLE_ITEM)) {
           if (getAdapterConfig().getCategoryId() != null) {
@@ -364,24 +1257,26 @@ public class SNOWAdapter implements IAdapter {
     HttpGet recordsRequest = new HttpGet(recordsUri);
     URIBuilder uriBuilder = new URIBuilder(recordsRequest.getURI());
     buildIncrementalUri(nextUrlStr, request, uriBuilder);
+    // next links keep their offset, only the size of the following page changes
+    getPageSizeController(tableName, request).ifPresent(controller ->
+      uriBuilder.setParameter("sysparm_limit", "" + controller.getPageSize()));
 
     // TODO: remove, make part of adapter request filter options
     if (tableName.equals(TABLE_SC_REQUEST_ITEMS) && nextUrlStr == null) { // no need to add params to a pagination URL
       // if fetching request items, only fetch those that do not belong to a Request.
-      String existingParam = "";
-      for (NameValuePair pair : uriBuilder.getQueryParams()) {
-        if (pair.getName().equals("sysparm_query")) {
-          existingParam = pair.getValue();
-        }
-        existingParam = "^" + existingParam;
-      }
-      uriBuilder.addParameter("sysparm_query", existingParam + "requestISEMPTY");
+      String existingParam = SNOWPartitionedReader.getQuery(uriBuilder.build());
+      uriBuilder.setParameter("sysparm_query", existingParam.isEmpty() ? "requestISEMPTY" :
+        existingParam + "^requestISEMPTY");
     }
 
     URI uri = uriBuilder.build();
+    if (nextUrlStr == null && isKeysetPagination(tableName, request)) {
+      uri = SNOWKeysetPagination.withKeysetOrder(uri);
+    } else if (nextUrlStr == null && isSorted(request) && isTableApi(tableName)) {
+      uri = SNOWPartitionedReader.withStableOrder(uri); // offset pages of a sort with ties would overlap
+    }
     recordsRequest.setURI(uri);
-    Pair<IAdapterResponse, String> pair = executePaginatedRequest(recordsRequest);
-    return new ImmutablePair<>(Optional.ofNullable(pair.getLeft().getJSONObject()), pair.getRight());
+    return Optional.of(recordsRequest);
   }
 
 
@@ -394,7 +1289,7 @@ public class SNOWAdapter implements IAdapter {
       if (request.getLimit() > 0) {
         uriBuilder.addParameter("sysparm_limit", "" + request.getLimit());
       } else {
-        uriBuilder.addParameter("sysparm_limit", "200");
+        uriBuilder.addParameter("sysparm_limit", "" + DEFAULT_PAGE_SIZE);
       }
 
       if (request.getFilterDescList() != null) {
@@ -475,10 +1370,33 @@ public class SNOWAdapter implements IAdapter {
       }
       uriBuilder.addParameter("sysparm_query", whereClause.toString());
       log.info("whereClause {}", whereClause);
+
+      Optional<SNOWFieldProjection> projection = SNOWFieldProjection.of(request.getSchemaMapping());
+      if (isProjected(request, projection)) {
+        // only the columns the mapping and the joins read
+        List<String> joinKeys = getJoinKeys(request.getContentType(), projection);
+        joinKeys.addAll(getDotWalkedFields(request.getContentType(), projection));
+        uriBuilder.addParameter("sysparm_fields", projection.get().getFields(joinKeys));
+        if (projection.get().canExcludeReferenceLinks()) {
+          uriBuilder.addParameter("sysparm_exclude_reference_link", "true");
+        }
+      }
     }
   }
 
-  private String getNextLinkFromHeaders(CloseableHttpResponse response) {
+  /**
+   * @return true if the read requests only the columns of the projection, and the dot-walked ones, with sysparm_fields
+   */
+  private static boolean isProjected(IAdapterRequest request, Optional<SNOWFieldProjection> projection) {
+    String tableName = contentTypeToSnowTable.get(request.getContentType().getName());
+    return projection.isPresent() && tableName != null && isTableApi(tableName);
+  }
+
+  private String getNextLinkFromHeaders(HttpResponse response) {
+    return getLinkFromHeaders(response, "next");
+  }
+
+  private String getLinkFromHeaders(HttpResponse response, String rel) {
     /*
     Pagination links are in the links header eg
     Link <https://dev41045.service-now.com/api/now/table/incident?sysparm_limit=1&sysparm_offset=0>;rel="first",
@@ -493,7 +1411,7 @@ public class SNOWAdapter implements IAdapter {
         NameValuePair[] pairs = element.getParameters();
         for (int i = 0; i < pairs.length; ++i) {
           NameValuePair pair = pairs[i];
-          if (pair.getValue().equals("next")) {
+          if (pair.getValue().equals(rel)) {
             String elementStr = element.toString();
             String regex = "[^<>]+";
             Pattern pattern = Pattern.compile(regex);
@@ -512,9 +1430,14 @@ public class SNOWAdapter implements IAdapter {
     return nextLink;
   }
 
-  private JSONObject getJsonObjectFromResponse(CloseableHttpResponse response) throws IOException, ParseException {
+  private JSONObject getJsonObjectFromResponse(HttpResponse response) throws IOException, ParseException {
+    if (getAdapterConfig().isStreamingParse()) {
+      // no intermediate String copy of the body, e.g. for the 10000 entries pages of related entries
+      try (InputStream content = response.getEntity().getContent()) {
+        return SNOWJsonStreamReader.readObject(content);
+      }
+    }
     String jsonStr = EntityUtils.toString(response.getEntity());
-    response.close();
     JSONParser parser = new JSONParser();
     return (JSONObject) parser.parse(jsonStr);
   }
@@ -527,54 +1450,131 @@ public class SNOWAdapter implements IAdapter {
     if (entryIds == null || entryIds.isEmpty()) {
       return new ImmutablePair<>(Optional.empty(), null);
     }
-    CredentialsProvider provider = new BasicCredentialsProvider();
-    UsernamePasswordCredentials credentials
-      = new UsernamePasswordCredentials(getAdapterConfig().getUsername(), getAdapterConfig().getPassword());
-    provider.setCredentials(AuthScope.ANY, credentials);
-
-    try (CloseableHttpClient httpclient = HttpClientBuilder.create()
-      .setDefaultCredentialsProvider(provider)
-      .build()) {
-      String uriStr;
-      if (nextUrlStr == null || nextUrlStr.isEmpty()) {
-        uriStr = getAdapterConfig().getUri() + "/api/now/table/" + table;
-      } else {
-        uriStr = nextUrlStr;
-      }
-      HttpGet relatedEntitiesRequest = new HttpGet(uriStr);
-
-      if (nextUrlStr == null) { // if paginating, the getAdapterConfig() are already set
-        StringBuilder idQueryBuilder = new StringBuilder(entryIds.size() * 50);
-        idQueryBuilder.append(filterField);
-        idQueryBuilder.append("IN");
-        entryIds.forEach(entryId -> idQueryBuilder.append(entryId).append(","));
-        idQueryBuilder.deleteCharAt(idQueryBuilder.length() - 1); // remove extra comma at the end
-
-        URIBuilder uriBuilder = new URIBuilder(relatedEntitiesRequest.getURI())
-          .addParameter("sysparm_limit", "10000")
-          .addParameter("sysparm_query", idQueryBuilder.toString());
-        extraParams.ifPresent(paramsMap -> paramsMap.forEach((key, value) -> uriBuilder.addParameter(key, value)));
-        URI uri = uriBuilder.build();
-        relatedEntitiesRequest.setURI(uri);
-      }
-
-      CloseableHttpResponse response = httpclient.execute(relatedEntitiesRequest);
-      int statusCode = response.getStatusLine().getStatusCode();
-      if (statusCode == HttpStatus.SC_OK) {
-        JSONObject topObject = getJsonObjectFromResponse(response);
-        String nextLink = getNextLinkFromHeaders(response);
-        return new ImmutablePair<>(Optional.of(topObject), nextLink);
-      } else {
-        log.error("HTTP error: {} {}", statusCode, EntityUtils.toString(response.getEntity()));
+
+    String uriStr;
+    if (nextUrlStr == null || nextUrlStr.isEmpty()) {
+      uriStr = getAdapterConfig().getUri() + "/api/now/table/" + table;
+    } else {
+      uriStr = nextUrlStr;
+    }
+    HttpGet relatedEntitiesRequest = new HttpGet(uriStr);
+
+    if (nextUrlStr == null) { // if paginating, the getAdapterConfig() are already set
+      StringBuilder idQueryBuilder = new StringBuilder(entryIds.size() * 50);
+      idQueryBuilder.append(filterField);
+      idQueryBuilder.append("IN");
+      entryIds.forEach(entryId -> idQueryBuilder.append(entryId).append(","));
+      idQueryBuilder.deleteCharAt(idQueryBuilder.length() - 1); // remove extra comma at the end
+
+      URIBuilder uriBuilder = new URIBuilder(relatedEntitiesRequest.getURI())
+        .addParameter("sysparm_limit", "" + RELATED_PAGE_SIZE)
+        .addParameter("sysparm_query", idQueryBuilder.toString());
+      extraParams.ifPresent(paramsMap -> paramsMap.forEach((key, value) -> {
+        if (key.equals("sysparm_query")) { // narrows the lookup, eg to the comments created since a date
+          uriBuilder.setParameter(key, idQueryBuilder + "^" + value);
+        } else {
+          uriBuilder.addParameter(key, value);
+        }
+      }));
+      try {
+        relatedEntitiesRequest.setURI(uriBuilder.build());
+      } catch (URISyntaxException e) {
+        log.error("Invalid URI for related entries of " + table, e);
+        return new ImmutablePair<>(Optional.empty(), null);
+      }
+    }
+
+    // lookups page separately from reads of the same table, their pages start much larger
+    Optional<SNOWPageSizeController> pageSizeController = getAdapterConfig().isAdaptivePageSize() ?
+      Optional.of(SNOWPageSizeController.get(getAdapterConfig(), table + "#related", RELATED_PAGE_SIZE)) :
+      Optional.empty();
+    if (pageSizeController.isPresent()) {
+      try {
+        relatedEntitiesRequest.setURI(new URIBuilder(relatedEntitiesRequest.getURI())
+          .setParameter("sysparm_limit", "" + pageSizeController.get().getPageSize()).build());
+      } catch (URISyntaxException e) {
+        log.error("Invalid URI for related entries of " + table, e);
+        return new ImmutablePair<>(Optional.empty(), null);
       }
+    }
+
+    Pair<IAdapterResponse, String> pair = executeRelatedRequest(relatedEntitiesRequest, pageSizeController);
+    return new ImmutablePair<>(Optional.ofNullable(pair.getLeft().getJSONObject()), pair.getRight());
+  }
+
+  /**
+   * Sends a lookup in the batch of its page with batchLookups, on its own otherwise or if the batch did not service it
+   */
+  private Pair<IAdapterResponse, String> executeRelatedRequest(HttpGet relatedEntitiesRequest,
+                                                               Optional<SNOWPageSizeController> pageSizeController) {
+    return getAdapterConfig().isBatchLookups() ? executeBatched(relatedEntitiesRequest, pageSizeController) :
+      executePaginatedRequest(relatedEntitiesRequest, pageSizeController);
+  }
 
+  /**
+   * Sends the request in the next batch, or on its own if the instance did not service it.
+   * If the batch call failed the request may have run, only GETs are then sent again.
+   */
+  private Pair<IAdapterResponse, String> executeBatched(HttpRequestBase httpRequest,
+                                                        Optional<SNOWPageSizeController> pageSizeController) {
+    Optional<HttpResponse> batchedResponse;
+    try {
+      batchedResponse = getBatcher().execute(httpRequest);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted in SNOWAdapter", e);
+      return new ImmutablePair<>(BaseAdapterResponse.failureResponse("Interrupted in SNOWAdapter"), null);
     } catch (IOException e) {
-      log.error("Failed to autoclose CloseableHttpClient in SNOWClient", e);
-    } catch (Exception e) {
-      log.error("Exception in SNOWClient", e);
+      if (!HttpGet.METHOD_NAME.equals(httpRequest.getMethod())) {
+        log.error("Batch call failed, not sending " + httpRequest.getMethod() + " " + httpRequest.getURI() + " again", e);
+        return new ImmutablePair<>(BaseAdapterResponse.failureResponse(
+          "Batch call failed, the request may have been applied " + e.getMessage()), null);
+      }
+      return executePaginatedRequest(httpRequest, pageSizeController);
+    }
+    try {
+      if (batchedResponse.isPresent()) {
+        return toPaginatedResponse(batchedResponse.get());
+      }
+    } catch (IOException | ParseException e) {
+      log.error("Failed to read a batched response in SNOWAdapter", e);
+      return new ImmutablePair<>(BaseAdapterResponse.failureResponse(
+        "Failed to read a batched response in SNOWAdapter " + e.getMessage()), null);
+    }
+    return executePaginatedRequest(httpRequest, pageSizeController);
+  }
+
+  private synchronized SNOWBatcher getBatcher() {
+    if (batcher == null) {
+      batcher = new SNOWBatcher(getAdapterConfig().getUri(), getAdapterConfig().getBatchWindowMillis(),
+        getAdapterConfig().getMaxBatchRequests(), getAdapterConfig().getBatchTimeoutMillis(), this::postBatch);
     }
+    return batcher;
+  }
 
-    return new ImmutablePair<>(Optional.empty(), null);
+  /**
+   * @return the response of the Batch API, empty if the call failed
+   */
+  private Optional<JSONObject> postBatch(JSONObject batchRequest) {
+    HttpPost batchPost = new HttpPost(getAdapterConfig().getUri() + SNOWBatcher.BATCH_PATH);
+    batchPost.setEntity(new StringEntity(batchRequest.toJSONString(), StandardCharsets.UTF_8));
+    setRequestHeaders(batchPost);
+    try {
+      return executeWithRetry(batchPost, (httpResponse, sentMillis) -> {
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+        if (statusCode != HttpStatus.SC_OK) {
+          log.error("Batch request failed, HTTP error: " + statusCode + EntityUtils.toString(httpResponse.getEntity()));
+          return Optional.<JSONObject>empty();
+        }
+        return Optional.of(getJsonObjectFromResponse(httpResponse));
+      });
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted in SNOWAdapter", e);
+    } catch (Exception e) {
+      log.error("Exception in SNOWAdapter", e);
+    }
+    return Optional.empty();
   }
 
   Pair<Optional<JSONObject>, String> getRequestItemsEntriesIncrementally(List<String> entryIds, String nextUrlStr) {
@@ -582,8 +1582,14 @@ public class SNOWAdapter implements IAdapter {
   }
 
   Pair<Optional<JSONObject>, String> getCommentEntriesIncrementally(List<String> entryIds, String nextUrlStr) {
+    return getCommentEntriesIncrementally(entryIds, nextUrlStr, Optional.empty());
+  }
+
+  private Pair<Optional<JSONObject>, String> getCommentEntriesIncrementally(List<String> entryIds, String nextUrlStr,
+                                                                          Optional<Map<String, String>> projectionParams) {
     HashMap<String, String> extraParams = new HashMap<>();
     extraParams.put("element", "comments");
+    projectionParams.ifPresent(extraParams::putAll);
     return getRelatedEntriesIncrementally("sys_journal_field", "element_id", entryIds,
       Optional.of(extraParams), nextUrlStr);
   }
@@ -600,8 +1606,30 @@ public class SNOWAdapter implements IAdapter {
     return getRelatedEntriesIncrementally(TABLE_USER, "sys_id", entryIds, Optional.empty(), nextUrlStr);
   }
 
+  /**
+   * sysparm_fields and sysparm_exclude_reference_link for the entries joined under appendKeys
+   */
+  private static Optional<Map<String, String>> getProjectionParams(Optional<SNOWFieldProjection> projection,
+                                                                   Collection<String> appendKeys, String joinKey) {
+    if (!projection.isPresent()) {
+      return Optional.empty();
+    }
+    return projection.get().getRelatedFields(appendKeys, joinKey).map(fields -> {
+      Map<String, String> params = new HashMap<>();
+      params.put("sysparm_fields", fields);
+      if (projection.get().canExcludeReferenceLinks(appendKeys)) {
+        params.put("sysparm_exclude_reference_link", "true");
+      }
+      return params;
+    });
+  }
+
   Optional<JSONObject> createTableEntry(String snowTable, String jsonStr) {
+    return createTableEntry(snowTable, jsonStr, this::executeNow).join();
+  }
 
+  private CompletableFuture<Optional<JSONObject>> createTableEntry(String snowTable, String jsonStr,
+                                                                   HttpExecutor executor) {
     String incidentsUri = getAdapterConfig().getUri() + "/api/now/table/" + snowTable;
     HttpPost createRequest = new HttpPost(incidentsUri);
     StringEntity postingString;
@@ -609,11 +1637,11 @@ public class SNOWAdapter implements IAdapter {
       postingString = new StringEntity(jsonStr);
     } catch (UnsupportedEncodingException e) {
       log.error("Failed to update entity", e);
-      return Optional.empty();
+      return CompletableFuture.completedFuture(Optional.empty());
     }
     createRequest.setEntity(postingString);
-    IAdapterResponse adapterResponse = executeRequest(createRequest);
-    return Optional.ofNullable(adapterResponse.getJSONObject());
+    return executor.execute(createRequest)
+      .thenApply(pair -> Optional.ofNullable(pair.getLeft().getJSONObject()));
   }
 
   Optional<JSONObject> updateTableEntry(String snowTable, String sys_id, String jsonStr) {
@@ -631,48 +1659,67 @@ public class SNOWAdapter implements IAdapter {
     return Optional.ofNullable(adapterResponse.getJSONObject());
   }
 
+  /**
+   * The catalog item of the instance, looked up once per catalogItemRefreshMillis and shared by the adapters of the
+   * instance; a failed lookup is retried by the next create
+   */
+  private CompletableFuture<Optional<String>> getCachedGenericServiceRequestId(HttpExecutor executor) {
+    CompletableFuture<Optional<String>> lookup = new CompletableFuture<>();
+    Pair<Long, CompletableFuture<Optional<String>>> catalogItemId =
+      catalogItemIds.compute(getAdapterConfig().getUri(), (uri, cached) -> {
+        long now = System.currentTimeMillis();
+        boolean failed = cached != null && cached.getRight().isDone() &&
+          (cached.getRight().isCompletedExceptionally() || !cached.getRight().join().isPresent());
+        if (cached != null && !failed && now - cached.getLeft() < getAdapterConfig().getCatalogItemRefreshMillis()) {
+          return cached;
+        }
+        return new ImmutablePair<>(now, lookup);
+      });
+    if (catalogItemId.getRight() == lookup) {
+      getGenericServiceRequestId(executor).whenComplete((itemId, throwable) -> {
+        if (throwable != null) {
+          lookup.completeExceptionally(throwable);
+        } else {
+          lookup.complete(itemId);
+        }
+      });
+    }
+    return catalogItemId.getRight().exceptionally(throwable -> {
+      log.error("Failed to look up the catalog item", throwable);
+      return Optional.empty();
+    });
+  }
+
   // Autodesk specific
   Optional<String> getGenericServiceRequestId() {
-    CredentialsProvider provider = new BasicCredentialsProvider();
-    UsernamePasswordCredentials credentials
-      = new UsernamePasswordCredentials(getAdapterConfig().getUsername(), getAdapterConfig().getPassword());
-    provider.setCredentials(AuthScope.ANY, credentials);
-
-    int statusCode = 0;
-    try (CloseableHttpClient httpclient = HttpClientBuilder.create()
-      .setDefaultCredentialsProvider(provider)
-      .build()) {
+    return getGenericServiceRequestId(this::executeNow).join();
+  }
 
-      String uriStr = getAdapterConfig().getUri() + "/api/now/table/" + "sc_cat_item";
-      HttpGet recordsRequest = new HttpGet(uriStr);
+  private CompletableFuture<Optional<String>> getGenericServiceRequestId(HttpExecutor executor) {
+    String uriStr = getAdapterConfig().getUri() + "/api/now/table/" + "sc_cat_item";
+    HttpGet recordsRequest = new HttpGet(uriStr);
 
+    try {
       URIBuilder uriBuilder = new URIBuilder(recordsRequest.getURI());
       uriBuilder.addParameter("sysparm_query", "name=Generic Service Request (I need...)");
+      recordsRequest.setURI(uriBuilder.build());
+    } catch (URISyntaxException e) {
+      log.error("Invalid URI for catalog item lookup", e);
+      return CompletableFuture.completedFuture(Optional.empty());
+    }
 
-      URI uri = uriBuilder.build();
-
-      recordsRequest.setURI(uri);
-      CloseableHttpResponse response = httpclient.execute(recordsRequest);
-      statusCode = response.getStatusLine().getStatusCode();
-      if (statusCode == HttpStatus.SC_OK) {
-        JSONObject topObject = getJsonObjectFromResponse(response);
-        JSONArray results = (JSONArray) topObject.get("result");
-        if (results.size() > 0) {
+    return executor.execute(recordsRequest).thenApply(pair -> {
+      IAdapterResponse response = pair.getLeft();
+      if (response.getJSONObject() != null) {
+        JSONArray results = (JSONArray) response.getJSONObject().get("result");
+        if (results != null && results.size() > 0) {
           JSONObject categoryItem = (JSONObject) results.get(0);
           String catalogItemSysId = (String) categoryItem.get("sys_id");
           return Optional.of(catalogItemSysId);
         }
-      } else {
-        log.error("HTTP error: {} {}", statusCode, EntityUtils.toString(response.getEntity()));
       }
-
-    } catch (IOException e) {
-      log.error("Failed to autoclose CloseableHttpClient in SNOWClient", e);
-    } catch (Exception e) {
-      log.error("Exception in SNOWClient", e);
-    }
-
-    return Optional.empty();
+      return Optional.empty();
+    });
   }
 
   // Secondary entities
@@ -690,104 +1737,435 @@ public class SNOWAdapter implements IAdapter {
   void fetchAndJoinEntries(JSONArray entries, String entriesIdKey, String fetchedEntriesIdKey,
                            String entriesAppendKey,
                            BiFunction<List<String>, String, Pair<Optional<JSONObject>, String>> fetchMethod) {
-    ArrayList<String> entryIds = new ArrayList<>();
-    HashMap<String, JSONArray> commentsMap = new HashMap<>();
-
-    // special handling of incident comments: get all ids to fetch comments in one call
-    // perform a hash join of comments JSON and incidents JSON
-    entries.forEach(entry -> {
-      String entryId = "";
-      Object fetchedEntriesIdObject = ((JSONObject) entry).get(entriesIdKey);
-      if (fetchedEntriesIdObject instanceof String) {
-        entryId = (String) fetchedEntriesIdObject;
-      } else if (fetchedEntriesIdObject instanceof JSONObject
-        && ((JSONObject)fetchedEntriesIdObject).get("value") != null) {
-        // special case for Requests and Request items and CMDB. Request item request id is in JSON path $request.value
-        // In the future we must implement a full-blown JSONPath solution if more cases use that
-        entryId = (String) ((JSONObject)fetchedEntriesIdObject).get("value");
-      }
-      entryIds.add(entryId);
-    });
-    AtomicLong commentCounter = new AtomicLong(0);
-    String nextCommentUrl = null;
+    fetchAndJoinEntries(entries,
+      Collections.singletonList(new SNOWJoin(entriesIdKey, fetchedEntriesIdKey, entriesAppendKey, fetchMethod)));
+  }
+
+  /**
+   * Runs the lookups of the joins concurrently on the join executor, then appends their results to the entries.
+   * Each lookup is split in chunks of at most maxInListSize ids, so that the IN query keeps the URL short, and every
+   * chunk is a task of its own: no task waits for another one, the calling thread waits for them all.
+   * JSONObjects are not thread safe: the lookups only read id lists taken beforehand, and the entries are only
+   * changed on the calling thread once every lookup is done.
+   */
+  private void fetchAndJoinEntries(JSONArray entries, List<SNOWJoin> joins) {
+    boolean concurrent = getAdapterConfig().isBatchLookups() || getAdapterConfig().getJoinThreads() > 1;
+    List<SNOWHashJoin> hashJoins = new ArrayList<>(joins.size());
+    List<List<CompletableFuture<JSONArray>>> lookups = new ArrayList<>(joins.size());
+    for (SNOWJoin join : joins) {
+      SNOWHashJoin hashJoin = new SNOWHashJoin(entries, join.getAppendKeys());
+      List<List<String>> chunks = getEntryIdChunks(hashJoin.getDistinctIds());
+      List<CompletableFuture<JSONArray>> chunkLookups = new ArrayList<>(chunks.size());
+      for (List<String> chunk : chunks) {
+        chunkLookups.add(concurrent ?
+          CompletableFuture.supplyAsync(() -> fetchRelatedEntries(chunk, join), getJoinExecutor()) :
+          CompletableFuture.completedFuture(fetchRelatedEntries(chunk, join)));
+      }
+      hashJoins.add(hashJoin);
+      lookups.add(chunkLookups);
+    }
+
+    for (int i = 0; i < joins.size(); i++) {
+      SNOWHashJoin hashJoin = hashJoins.get(i);
+      long fetched = 0;
+      for (CompletableFuture<JSONArray> chunkLookup : lookups.get(i)) {
+        fetched += hashJoin.add(chunkLookup.join(), joins.get(i).getFetchedEntriesIdKey());
+      }
+      int joined = hashJoin.join();
+      if (fetched > 0) {
+        log.info("Read ({}) {} for {} entry ids, appended {} times", fetched, joins.get(i).getName(),
+          hashJoin.getDistinctIds().size(), joined);
+      }
+    }
+  }
+
+  /**
+   * @return the ids in chunks of at most maxInListSize ids
+   */
+  private List<List<String>> getEntryIdChunks(List<String> distinctIds) {
+    int chunkSize = Math.max(1, getAdapterConfig().getMaxInListSize());
+    List<List<String>> chunks = new ArrayList<>((distinctIds.size() + chunkSize - 1) / chunkSize);
+    for (int start = 0; start < distinctIds.size(); start += chunkSize) {
+      chunks.add(distinctIds.subList(start, Math.min(start + chunkSize, distinctIds.size())));
+    }
+    return chunks;
+  }
+
+  /**
+   * @return every page of the related entries fetched for the ids
+   */
+  private JSONArray fetchRelatedEntries(List<String> entryIds, SNOWJoin join) {
+    JSONArray relatedEntries = new JSONArray();
+    String nextUrl = null;
     do {
-      Pair<Optional<JSONObject>, String> commentResponse = fetchMethod.apply(entryIds, nextCommentUrl);
-      nextCommentUrl = null;
-      if (commentResponse.getLeft().isPresent()) {
-        JSONArray secondaryEntries = (JSONArray) commentResponse.getLeft().get().get("result");
-        secondaryEntries.forEach(secondaryEntry -> {
-          Object fetchedEntriesIdObject = ((JSONObject) secondaryEntry).get(fetchedEntriesIdKey);
-          String incidentId = "";
-          if (fetchedEntriesIdObject instanceof String) {
-            incidentId = (String) fetchedEntriesIdObject;
-          } else if (fetchedEntriesIdObject instanceof JSONObject
-            && ((JSONObject)fetchedEntriesIdObject).get("value") != null) {
-            // special case for Requests and Request items. Request item request id is in JSON path $request.value
-            // In the future we must implement a full-blown JSONPath solution if more cases use that
-            incidentId = (String) ((JSONObject)fetchedEntriesIdObject).get("value");
+      Pair<Optional<JSONObject>, String> relatedResponse = join.getFetchMethod().apply(entryIds, nextUrl);
+      nextUrl = null;
+      if (relatedResponse.getLeft().isPresent()) {
+        relatedEntries.addAll((JSONArray) relatedResponse.getLeft().get().get("result"));
+        nextUrl = relatedResponse.getRight();
+      }
+    } while (nextUrl != null);
+    log.debug("Read ({}) {} for entry ids {}", relatedEntries.size(), join.getName(), entryIds);
+    return relatedEntries;
+  }
+
+  private synchronized ExecutorService getJoinExecutor() {
+    if (joinExecutor == null) {
+      // batched lookups mostly wait together for their batch, every lookup of a page needs a thread to join it
+      joinExecutor = getAdapterConfig().isBatchLookups() ? Executors.newCachedThreadPool() :
+        Executors.newFixedThreadPool(getAdapterConfig().getJoinThreads());
+    }
+    return joinExecutor;
+  }
+
+  void fetchAndJoinCommentsForEntries(JSONArray entries) {
+    SNOWJoinRegistry.get(COMMENTS_APPEND_KEY).ifPresent(join ->
+      fetchAndJoinEntries(entries, planJoins(entries, Collections.singletonList(join), Optional.empty())));
+  }
+
+  /**
+   * One lookup per table, whatever the number of columns of the entries pointing to it
+   */
+  private List<SNOWJoin> planJoins(JSONArray entries, List<SNOWJoinRegistry.JoinDefinition> requiredJoins,
+                                   Optional<SNOWFieldProjection> projection) {
+    List<SNOWJoin> joins = new ArrayList<>();
+    for (List<SNOWJoinRegistry.JoinDefinition> tableJoins : SNOWJoinPlanner.plan(requiredJoins).values()) {
+      String table = tableJoins.get(0).getTable();
+      String fetchedEntriesIdKey = tableJoins.get(0).getFetchedEntriesIdKey();
+      Map<String, String> appendKeys = new LinkedHashMap<>();
+      tableJoins.forEach(join -> appendKeys.put(join.getEntriesIdKey(), join.getAppendKey()));
+
+      Optional<Map<String, String>> params = getProjectionParams(projection, appendKeys.values(), fetchedEntriesIdKey);
+      Optional<SNOWReferenceStore> store = tableJoins.get(0).isReference() ? getReferenceStore(table) : Optional.empty();
+      BiFunction<List<String>, String, Pair<Optional<JSONObject>, String>> fetchMethod;
+      if (appendKeys.containsValue(COMMENTS_APPEND_KEY) && getAdapterConfig().isIncrementalComments()) {
+        fetchMethod = journaled(getJournalStore(params), getUpdatedOn(entries), params);
+      } else if (appendKeys.containsValue(COMMENTS_APPEND_KEY)) {
+        fetchMethod = (ids, nextUrlStr) -> getCommentEntriesIncrementally(ids, nextUrlStr, params);
+      } else if (tableJoins.get(0).isReference() && store.isPresent()) {
+        // the store keeps whole entries, whatever the mapping that reads them next
+        fetchMethod = cached(table, Optional.empty(), stored(store.get(), (ids, nextUrlStr) ->
+          getRelatedEntriesIncrementally(table, fetchedEntriesIdKey, ids, Optional.empty(), nextUrlStr)));
+      } else if (tableJoins.get(0).isReference()) {
+        fetchMethod = cached(table, params,
+          (ids, nextUrlStr) -> getRelatedEntriesIncrementally(table, fetchedEntriesIdKey, ids, params, nextUrlStr));
+      } else {
+        fetchMethod = (ids, nextUrlStr) ->
+          getRelatedEntriesIncrementally(table, fetchedEntriesIdKey, ids, params, nextUrlStr);
+      }
+      joins.add(new SNOWJoin(appendKeys, fetchedEntriesIdKey, fetchMethod));
+    }
+    return joins;
+  }
+
+  /**
+   * @return the append key of each reference column whose mapped columns are requested inline with
+   * dot-walked sysparm_fields, eg assignment_group.name, instead of by a lookup
+   */
+  private Map<String, String> getDotWalkedReferences(List<SNOWJoinRegistry.JoinDefinition> requiredJoins,
+                                                     Optional<SNOWFieldProjection> projection) {
+    Map<String, String> dotWalked = new LinkedHashMap<>();
+    if (!getAdapterConfig().isDotWalkReferences() || !projection.isPresent()) {
+      return dotWalked;
+    }
+    for (SNOWJoinRegistry.JoinDefinition join : requiredJoins) {
+      if (join.isReference() && projection.get().getDotWalkableColumns(join.getAppendKey()).isPresent()) {
+        dotWalked.put(join.getEntriesIdKey(), join.getAppendKey());
+      }
+    }
+    return dotWalked;
+  }
+
+  /**
+   * @return the dot-walked sysparm_fields of the references read inline, eg assignment_group.name
+   */
+  private List<String> getDotWalkedFields(ContentType contentType, Optional<SNOWFieldProjection> projection) {
+    List<String> fields = new ArrayList<>();
+    getDotWalkedReferences(SNOWJoinRegistry.getRequiredJoins(contentType, projection), projection)
+      .forEach((column, appendKey) -> projection.get().getDotWalkableColumns(appendKey).get().forEach(relatedColumn ->
+        fields.add(column + "." + relatedColumn)));
+    return fields;
+  }
+
+  /**
+   * Moves the dot-walked fields of each entry into the structure a lookup would have appended,
+   * eg assignment_group.name becomes _assignment_group[0].name
+   */
+  private static void joinDotWalkedEntries(JSONArray entries, Map<String, String> dotWalked,
+                                           Optional<SNOWFieldProjection> projection) {
+    dotWalked.forEach((column, appendKey) -> {
+      Set<String> relatedColumns = projection.get().getDotWalkableColumns(appendKey).get();
+      for (Object entryObject : entries) {
+        JSONObject entry = (JSONObject) entryObject;
+        JSONObject related = new JSONObject();
+        relatedColumns.forEach(relatedColumn -> related.put(relatedColumn, entry.remove(column + "." + relatedColumn)));
+        String referencedId = SNOWHashJoin.getIdValue(entry.get(column));
+        if (!referencedId.isEmpty()) {
+          related.put("sys_id", referencedId);
+          JSONArray relatedEntries = new JSONArray();
+          relatedEntries.add(related);
+          entry.put(appendKey, relatedEntries);
+        }
+      }
+    });
+  }
+
+  /**
+   * Puts the reference cache of the table in front of a lookup by sys_id: only the ids missing from the cache are
+   * fetched, all pages of them at once, and the result comes back as a single page
+   */
+  private BiFunction<List<String>, String, Pair<Optional<JSONObject>, String>> cached(
+    String table, Optional<Map<String, String>> params,
+    BiFunction<List<String>, String, Pair<Optional<JSONObject>, String>> fetchMethod) {
+    if (getAdapterConfig().getReferenceCacheMaxEntries() <= 0) {
+      return fetchMethod;
+    }
+    // entries read with different sysparm_fields are not interchangeable
+    SNOWReferenceCache cache = referenceCaches.computeIfAbsent(table + params.map(Object::toString).orElse(""),
+      key -> new SNOWReferenceCache(getAdapterConfig().getReferenceCacheMaxEntries(),
+        getAdapterConfig().getReferenceCacheTtlMillis()));
+
+    return (ids, nextUrlStr) -> {
+      JSONArray result = new JSONArray();
+      Set<String> missingIds = new LinkedHashSet<>();
+      for (String id : ids) {
+        if (id == null || id.isEmpty() || missingIds.contains(id)) {
+          continue;
+        }
+        Optional<Optional<JSONObject>> cached = cache.get(id);
+        if (cached.isPresent()) {
+          cached.get().ifPresent(result::add);
+        } else {
+          missingIds.add(id);
+        }
+      }
+
+      if (!missingIds.isEmpty()) {
+        Set<String> unknownIds = new HashSet<>(missingIds);
+        String nextMissingUrl = null;
+        do {
+          Pair<Optional<JSONObject>, String> missingPage = fetchMethod.apply(new ArrayList<>(missingIds), nextMissingUrl);
+          nextMissingUrl = null;
+          if (missingPage.getLeft().isPresent()) {
+            for (Object entry : (JSONArray) missingPage.getLeft().get().get("result")) {
+              String sysId = (String) ((JSONObject) entry).get("sys_id");
+              cache.put(sysId, (JSONObject) entry);
+              unknownIds.remove(sysId);
+              result.add(entry);
+            }
+            nextMissingUrl = missingPage.getRight();
+          } else {
+            unknownIds.clear(); // failed lookup, nothing is known about the ids
           }
-          if (commentsMap.get(incidentId) == null) { // init the hash map, one bucket per incident sys_id
-            commentsMap.put(incidentId, new JSONArray());
+        } while (nextMissingUrl != null);
+        unknownIds.forEach(cache::putAbsent);
+      }
+
+      JSONObject page = new JSONObject();
+      page.put("result", result);
+      return new ImmutablePair<>(Optional.of(page), null);
+    };
+  }
+
+  /**
+   * Puts the reference store of the table in front of a lookup by sys_id: only the ids the store has never seen are
+   * fetched, and stored, and the result comes back as a single page
+   */
+  private BiFunction<List<String>, String, Pair<Optional<JSONObject>, String>> stored(
+    SNOWReferenceStore store, BiFunction<List<String>, String, Pair<Optional<JSONObject>, String>> fetchMethod) {
+    return (ids, nextUrlStr) -> {
+      JSONArray result = new JSONArray();
+      List<String> missingIds = new ArrayList<>();
+      for (String id : ids) {
+        Optional<JSONObject> stored = store.get(id);
+        if (stored.isPresent()) {
+          result.add(stored.get());
+        } else {
+          missingIds.add(id);
+        }
+      }
+
+      String nextMissingUrl = null;
+      while (!missingIds.isEmpty()) {
+        Pair<Optional<JSONObject>, String> missingPage = fetchMethod.apply(missingIds, nextMissingUrl);
+        if (missingPage.getLeft().isPresent()) {
+          for (Object entry : (JSONArray) missingPage.getLeft().get().get("result")) {
+            store.put((JSONObject) entry);
+            result.add(entry);
           }
-          JSONArray comments = commentsMap.get(incidentId);
-          comments.add(secondaryEntry);
-          commentCounter.incrementAndGet();
-        });
-        nextCommentUrl = commentResponse.getRight();
-      }
-    } while (nextCommentUrl != null);
-    if (commentCounter.get() > 0) {
-      log.info("Read ({}) {} for entry ids {}", commentCounter.get(), entriesAppendKey, entryIds);
-    }
-
-    entries.forEach(entry -> {
-      String entryId = "";
-      Object fetchedEntriesIdObject = ((JSONObject) entry).get(entriesIdKey);
-      if (fetchedEntriesIdObject instanceof String) {
-        entryId = (String) fetchedEntriesIdObject;
-      } else if (fetchedEntriesIdObject instanceof JSONObject
-        && ((JSONObject)fetchedEntriesIdObject).get("value") != null) {
-        // special case for Requests and Request items and CMDB. Request item request id is in JSON path $request.value
-        // In the future we must implement a full-blown JSONPath solution if more cases use that
-        entryId = (String) ((JSONObject)fetchedEntriesIdObject).get("value");
-      }
-      JSONArray comments = commentsMap.get(entryId);
-      if (comments == null) return; // continue
-      if (comments.size() > 0) {
-        log.info("Read ({}) {} for entry id {}", comments.size(), entriesAppendKey, entryId);
-      }
-      ((JSONObject) entry).put(entriesAppendKey, comments);
-    });
+        }
+        nextMissingUrl = missingPage.getRight();
+        if (nextMissingUrl == null) {
+          break;
+        }
+      }
+
+      JSONObject page = new JSONObject();
+      page.put("result", result);
+      return new ImmutablePair<>(Optional.of(page), null);
+    };
   }
 
-  void fetchAndJoinCommentsForEntries(JSONArray entries) {
-    fetchAndJoinEntries(entries, "sys_id", "element_id", "_comments",
-      this::getCommentEntriesIncrementally);
+  /**
+   * @return the reference store of the table, synced first if it is due, empty if referenceStorePath is not set
+   */
+  private Optional<SNOWReferenceStore> getReferenceStore(String table) {
+    Optional<Path> storeDirectory = getReferenceStoreDirectory();
+    if (!storeDirectory.isPresent()) {
+      return Optional.empty();
+    }
+    SNOWReferenceStore store = SNOWReferenceStore.get(storeDirectory.get(), table);
+    if (store.isSyncDue(getAdapterConfig().getReferenceStoreSyncIntervalMillis())) {
+      syncReferenceStore(table, store);
+    }
+    return Optional.of(store);
+  }
+
+  private Optional<Path> getReferenceStoreDirectory() {
+    String storePath = getAdapterConfig().getReferenceStorePath();
+    if (storePath == null || storePath.isEmpty()) {
+      return Optional.empty();
+    }
+    // one directory per instance, the sys_ids of two instances may collide
+    String instance = getAdapterConfig().getUri().replaceAll("[^A-Za-z0-9.-]", "_");
+    return Optional.of(Paths.get(storePath, instance));
+  }
+
+  /**
+   * Re-reads the entries of the table updated since the watermark of the store, keeping those the store holds.
+   * The watermark then moves to the latest entry read, stored or not, so the next sync reads only newer updates
+   * instead of every entry updated since the newest stored one.
+   */
+  private void syncReferenceStore(String table, SNOWReferenceStore store) {
+    Optional<String> watermark = store.getWatermark();
+    if (!watermark.isPresent()) {
+      return; // nothing stored yet
+    }
+
+    HttpGet syncRequest = new HttpGet(getAdapterConfig().getUri() + "/api/now/table/" + table);
+    try {
+      syncRequest.setURI(new URIBuilder(syncRequest.getURI())
+        .addParameter("sysparm_limit", "" + RELATED_PAGE_SIZE)
+        .addParameter("sysparm_query", "sys_updated_on>=" +
+          SNOWKeysetPagination.dateValue(watermark.get(), getUserTimeZone()) + "^ORDERBYsys_updated_on")
+        .build());
+    } catch (URISyntaxException e) {
+      log.error("Invalid URI to sync the reference store of " + table, e);
+      return;
+    }
+
+    long updated = 0;
+    String latestUpdatedOn = watermark.get();
+    String nextUrlStr;
+    do {
+      Pair<IAdapterResponse, String> pair = executePaginatedRequest(syncRequest);
+      JSONObject page = pair.getLeft().getJSONObject();
+      if (page == null || !(page.get("result") instanceof JSONArray)) {
+        log.error("Failed to sync the reference store of {} from {}", table, watermark.get());
+        return;
+      }
+      for (Object entry : (JSONArray) page.get("result")) {
+        Object updatedOn = ((JSONObject) entry).get("sys_updated_on");
+        if (updatedOn instanceof String && ((String) updatedOn).compareTo(latestUpdatedOn) > 0) {
+          latestUpdatedOn = (String) updatedOn;
+        }
+        if (store.contains((String) ((JSONObject) entry).get("sys_id"))) {
+          store.put((JSONObject) entry);
+          updated++;
+        }
+      }
+      nextUrlStr = pair.getRight();
+      if (nextUrlStr != null) {
+        syncRequest = new HttpGet(nextUrlStr);
+      }
+    } while (nextUrlStr != null);
+    store.advanceWatermark(latestUpdatedOn); // only once every page was read
+    log.info("Synced the reference store of {}: {} of {} entries updated since {}", table, updated, store.size(),
+      watermark.get());
+  }
+
+  /**
+   * @return the journal store of the comments read with the given sysparm_fields
+   */
+  private SNOWJournalStore getJournalStore(Optional<Map<String, String>> params) {
+    // comments read with different sysparm_fields are not interchangeable
+    String name = "sys_journal_field.comments" +
+      params.map(paramsMap -> "." + Integer.toHexString(new TreeMap<>(paramsMap).toString().hashCode())).orElse("");
+    return journalStores.computeIfAbsent(name, key -> new SNOWJournalStore(getAdapterConfig().getJournalStoreMaxTickets(),
+      getReferenceStoreDirectory().map(storeDirectory -> SNOWReferenceStore.get(storeDirectory, key))));
   }
 
-  private void fetchAndJoinItemsForRequests(JSONArray entries) {
-    // Request id of item is in JSONPath "$request.value". For now custom logic will check for this case.
-    fetchAndJoinEntries(entries, "sys_id", "request", SC_REQUEST_ITEMS_APPEND_KEY,
-      this::getRequestItemsEntriesIncrementally);
+  /**
+   * @return the sys_updated_on of the entries by sys_id
+   */
+  private static Map<String, String> getUpdatedOn(JSONArray entries) {
+    Map<String, String> updatedOn = new HashMap<>();
+    for (Object entry : entries) {
+      Object sysId = ((JSONObject) entry).get("sys_id");
+      Object entryUpdatedOn = ((JSONObject) entry).get("sys_updated_on");
+      if (sysId instanceof String && entryUpdatedOn instanceof String) {
+        updatedOn.put((String) sysId, (String) entryUpdatedOn);
+      }
+    }
+    return updatedOn;
   }
 
-  private void fetchAndJoinCMDB(JSONArray entries) {
-    // Request id of item is in JSONPath "$request.value". For now custom logic will check for this case.
-    fetchAndJoinEntries(entries, "cmdb_ci", "sys_id", CMDB_CI_APPEND_KEY,
-      this::getCMDBEntriesIncrementally);
+  /**
+   * Puts the journal store in front of the comments lookup, the result holds every comment of the tickets as a
+   * single page
+   *
+   * @param ticketUpdatedOn the sys_updated_on of the tickets by sys_id
+   */
+  private BiFunction<List<String>, String, Pair<Optional<JSONObject>, String>> journaled(
+    SNOWJournalStore store, Map<String, String> ticketUpdatedOn, Optional<Map<String, String>> params) {
+    return (ids, nextUrlStr) -> {
+      Optional<JSONArray> comments = store.read(ids, ticketUpdatedOn,
+        (ticketIds, since) -> fetchComments(ticketIds, since, params));
+      if (!comments.isPresent()) {
+        return new ImmutablePair<>(Optional.empty(), null);
+      }
+      JSONObject page = new JSONObject();
+      page.put("result", comments.get());
+      return new ImmutablePair<>(Optional.of(page), null);
+    };
   }
 
-  private void fetchAndJoinAssignmentGroups(JSONArray entries) {
-    // Request id of item is in JSONPath "$request.value". For now custom logic will check for this case.
-    fetchAndJoinEntries(entries, "assignment_group", "sys_id", ASSIGNMENT_GROUP_APPEND_KEY,
-      this::getUserGroupEntriesIncrementally);
+  /**
+   * @param since the earliest sys_created_on to read, every comment if empty
+   * @return the comments of the tickets by ticket sys_id, empty if a page failed
+   */
+  private Optional<Map<String, JSONArray>> fetchComments(List<String> ticketIds, Optional<String> since,
+                                               Optional<Map<String, String>> projectionParams) {
+    Map<String, JSONArray> comments = new HashMap<>();
+    if (ticketIds.isEmpty()) {
+      return Optional.of(comments);
+    }
+    Map<String, String> params = new HashMap<>();
+    projectionParams.ifPresent(params::putAll);
+    since.ifPresent(createdOn -> params.put("sysparm_query",
+      "sys_created_on>=" + SNOWKeysetPagination.dateValue(createdOn, getUserTimeZone())));
+
+    String nextUrlStr = null;
+    do {
+      Pair<Optional<JSONObject>, String> page = getCommentEntriesIncrementally(ticketIds, nextUrlStr, Optional.of(params));
+      if (!page.getLeft().isPresent() || !(page.getLeft().get().get("result") instanceof JSONArray)) {
+        return Optional.empty();
+      }
+      for (Object comment : (JSONArray) page.getLeft().get().get("result")) {
+        String ticketId = SNOWHashJoin.getIdValue(((JSONObject) comment).get("element_id"));
+        comments.computeIfAbsent(ticketId, key -> new JSONArray()).add(comment);
+      }
+      nextUrlStr = page.getRight();
+    } while (nextUrlStr != null);
+    return Optional.of(comments);
   }
 
-  private void fetchAndJoinUsers(JSONArray entries) {
-    // Request id of item is in JSONPath "$request.value". For now custom logic will check for this case.
-    fetchAndJoinEntries(entries, "assigned_to", "sys_id", ASSIGNED_TO_APPEND_KEY,
-      this::getUserEntriesIncrementally);
-    fetchAndJoinEntries(entries, "caller_id", "sys_id", REPORTER_APPEND_KEY,
-      this::getUserEntriesIncrementally);
+  /**
+   * @return hits, misses, evictions and size of each reference cache, by table and requested fields
+   */
+  public Map<String, Map<String, Long>> getReferenceCacheStats() {
+    Map<String, Map<String, Long>> stats = new TreeMap<>();
+    referenceCaches.forEach((key, cache) -> stats.put(key, cache.getStats()));
+    return stats;
   }
 }
@@ -26,16 +26,118 @@ public class SNOWAdapterConfig extends BaseAdapterConfig {
   static final String TABLE_USER = "sys_user";
   static final String TABLE_USER_GROUP = "sys_user_group";
 
+  static final String COMMENTS_APPEND_KEY = "_comments";
   static final String SC_REQUEST_ITEMS_APPEND_KEY = "_items";
   static final String CMDB_CI_APPEND_KEY = "_cmdb_ci";
   static final String ASSIGNMENT_GROUP_APPEND_KEY = "_assignment_group";
   static final String ASSIGNED_TO_APPEND_KEY = "_user_assigned_to";
   static final String REPORTER_APPEND_KEY = "_user_reporter";
+  static final String OPENED_BY_APPEND_KEY = "_user_opened_by";
+  static final String RESOLVED_BY_APPEND_KEY = "_user_resolved_by";
+  static final String CLOSED_BY_APPEND_KEY = "_user_closed_by";
 
   private String catalogId;
   private String categoryId;
   private String itemId;
+  private long catalogItemRefreshMillis = 60 * 60 * 1000; // how long the catalog item of Request Items is reused
   private List<String> kbTitles;
   private String kbUrlPath;
   private String scUrlPath;
+
+  // HTTP connection pool, shared by all requests made by one adapter
+  private int maxConnectionsPerRoute = 20;
+  private int maxConnectionsTotal = 50;
+  private long connectionKeepAliveMillis = 30000; // used when the server does not send a Keep-Alive header
+  private int prewarmConnections = 0; // number of connections to open when the adapter is created
+
+  // async API
+  private int asyncIoThreads = 1; // I/O reactor threads of the non-blocking HTTP client
+  private int asyncWorkerThreads = 4; // threads that parse, join and consume pages fetched asynchronously
+
+  // secondary lookups of one page (comments, CMDB, groups, users) run concurrently on this many threads, 1 for serial
+  private int joinThreads = 4;
+  private int maxInListSize = 100; // ids per IN query of a lookup, larger lookups are split and run concurrently
+
+  // the lookups of a page are sent together as one call of the Batch API, lookups the batch does not service are
+  // sent on their own
+  private boolean batchLookups = false;
+  private long batchWindowMillis = 20; // how long the first lookup of a batch waits for the others
+  private int maxBatchRequests = 50;
+  private long batchTimeoutMillis = 5 * 60 * 1000; // how long a request waits for the response of its batch
+
+  // createTableEntries: creates in flight at once, and whether they go through the Batch API
+  private int maxConcurrentCreates = 16;
+  private boolean batchCreates = false;
+
+  // async updates of a record made within the window of its first one are merged and sent as one request, once the
+  // window has passed; each caller gets the response of that request. Blocking updates are sent right away, with
+  // the pending updates of the record
+  private boolean writeBehindUpdates = false;
+  private long updateCoalesceWindowMillis = 500;
+
+  // updates PATCH only the fields that differ from the last known state of the record, read by the adapter or
+  // passed in as the previous record; records not known are sent whole. The last writer loses: a field changed on
+  // the instance since the read, that an update sets back to its read value, keeps the other writer's value
+  private boolean diffUpdates = false;
+  private int knownStateMaxEntries = 10000; // per table
+  // how long after a read the state of a record is trusted, changes made on the instance meanwhile are not seen
+  private long knownStateTtlMillis = 60 * 1000;
+
+  // users, groups and CIs joined into tickets are cached across pages, 0 entries to look them up on every page
+  private int referenceCacheMaxEntries = 10000; // per table
+  private long referenceCacheTtlMillis = 10 * 60 * 1000;
+
+  // users, groups and CIs are also kept in files under this directory, read again after a restart; null to disable
+  private String referenceStorePath;
+  private long referenceStoreSyncIntervalMillis = 10 * 60 * 1000; // re-read the stored entries updated since
+
+  // comments of incidents are kept per ticket, only those created since the last read are fetched and tickets not
+  // updated since are not looked up at all
+  private boolean incrementalComments = false;
+  private int journalStoreMaxTickets = 10000; // kept in memory, the reference store file keeps them all
+
+  // reference columns mapped by name, eg $._assignment_group[*].name, are read inline with dot-walked sysparm_fields
+  // (assignment_group.name) instead of by a lookup of the referenced table
+  private boolean dotWalkReferences = false;
+
+  // parse responses token by token with Jackson; entries without joins are handed to the consumer one by one
+  private boolean streamingParse = false;
+
+  // number of pages fetched ahead while the current page is joined and consumed, 0 to fetch one page at a time
+  private int prefetchPages = 0;
+
+  // sys_created_on ranges read concurrently by unsorted getTableEntries, 0 or 1 to read pages one after the other
+  private int partitions = 0;
+  // cap on partition requests in flight per instance uri, the first adapter reading the instance sets it
+  private int maxConcurrentRequestsPerInstance = 8;
+
+  // page by sys_updated_on,sys_id after the last entry read instead of by offset, for unsorted reads of large tables
+  private boolean keysetPagination = false;
+
+  // size pages of table reads and lookups from the latency and size of the previous pages, per instance and table
+  private boolean adaptivePageSize = false;
+  private int minPageSize = 50;
+  private int maxPageSize = 10000;
+  private long targetPageLatencyMillis = 5000; // pages slower than this are halved
+  private long maxPageBytes = 20 * 1024 * 1024; // pages larger than this are halved
+
+  // rate limit and retries, shared by all adapters calling the same instance uri with the values of the first one
+  private double requestsPerSecond = 0; // 0 for no limit
+  private int maxRetries = 5; // retries of a request answered with 429, or 503 if its method is idempotent
+  private long initialBackoffMillis = 1000; // doubled on each retry unless the server sends Retry-After
+  private long maxBackoffMillis = 60000;
+
+  // time zone of the instance user the adapter signs in as, the instance reads the dates of a query in it
+  private String userTimeZone = "GMT-08:00";
+
+  // reads reuse the instance session cookie instead of sending Basic authentication each time
+  private boolean sessionCookies = true;
+
+  // OAuth: with a refresh token, accessToken is refreshed before it expires; a failed refresh is tried again after
+  // initialBackoffMillis, doubled after each failure up to maxBackoffMillis
+  private String refreshToken;
+  private String clientId;
+  private String clientSecret;
+  private long accessTokenExpiresAt = 0; // epoch millis, 0 if unknown
+  private long tokenRefreshSkewMillis = 60000; // refresh this long before the expiry
 }
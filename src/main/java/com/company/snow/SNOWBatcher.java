@@ -0,0 +1,275 @@
+package com.company.snow;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Sends the requests of concurrent callers as one call of the ServiceNow Batch API (/api/now/v1/batch).
+ * The first request of a batch waits windowMillis for others to join it, a batch is sent at once when it reaches
+ * maxRequests. Each caller gets the response to its own request, or empty if the instance listed it as unserviced,
+ * in which case the caller sends the request on its own. When the batch call itself fails the sub-requests may have
+ * run or not, the callers get an IOException and only idempotent requests may be sent again.
+ */
+@Slf4j
+class SNOWBatcher {
+  static final String BATCH_PATH = "/api/now/v1/batch";
+
+  private final String instanceUri;
+  private final long windowMillis;
+  private final int maxRequests;
+  private final long timeoutMillis;
+  private final Function<JSONObject, Optional<JSONObject>> transport; // posts a batch, empty if it failed
+
+  private List<PendingRequest> pendingRequests = new ArrayList<>();
+  private long requestIds;
+
+  private static class PendingRequest {
+    private final String id;
+    private final HttpRequestBase request;
+    private final CompletableFuture<Optional<HttpResponse>> response = new CompletableFuture<>();
+
+    PendingRequest(String id, HttpRequestBase request) {
+      this.id = id;
+      this.request = request;
+    }
+  }
+
+  /**
+   * @param timeoutMillis how long a request waits for the response of its batch
+   */
+  SNOWBatcher(String instanceUri, long windowMillis, int maxRequests, long timeoutMillis,
+              Function<JSONObject, Optional<JSONObject>> transport) {
+    this.instanceUri = instanceUri;
+    this.windowMillis = windowMillis;
+    this.maxRequests = Math.max(1, maxRequests);
+    this.timeoutMillis = timeoutMillis;
+    this.transport = transport;
+  }
+
+  /**
+   * Sends the request in the next batch and waits for its response
+   *
+   * @return the response, empty if the instance did not service the request
+   * @throws IOException if the batch call failed or timed out, the request may have run on the instance
+   */
+  Optional<HttpResponse> execute(HttpRequestBase request) throws InterruptedException, IOException {
+    PendingRequest pendingRequest;
+    List<PendingRequest> fullBatch = null;
+    boolean first;
+    synchronized (this) {
+      pendingRequest = new PendingRequest(Long.toString(++requestIds), request);
+      first = pendingRequests.isEmpty();
+      pendingRequests.add(pendingRequest);
+      if (pendingRequests.size() >= maxRequests) {
+        fullBatch = takePendingRequests();
+      }
+    }
+
+    if (fullBatch != null) {
+      send(fullBatch);
+    } else if (first) {
+      try {
+        Thread.sleep(windowMillis); // the other requests of the page are sent meanwhile
+      } finally {
+        // sent even if interrupted, the requests that joined the batch wait for it; the interrupt would fail the
+        // rate limiter or retry sleeps of the batch call, it is restored once the batch is sent
+        List<PendingRequest> batch;
+        synchronized (this) {
+          batch = takePendingRequests();
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+          send(batch);
+        } finally {
+          if (interrupted) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }
+    return await(pendingRequest);
+  }
+
+  /**
+   * Sends the requests right away, in batches of at most maxRequests
+   *
+   * @return the responses in the order of the requests, empty for those not serviced
+   * @throws IOException if a batch call failed
+   */
+  List<Optional<HttpResponse>> executeAll(List<? extends HttpRequestBase> requests)
+    throws InterruptedException, IOException {
+    List<PendingRequest> batch = new ArrayList<>(requests.size());
+    synchronized (this) {
+      for (HttpRequestBase request : requests) {
+        batch.add(new PendingRequest(Long.toString(++requestIds), request));
+      }
+    }
+    for (int start = 0; start < batch.size(); start += maxRequests) {
+      send(batch.subList(start, Math.min(start + maxRequests, batch.size())));
+    }
+    List<Optional<HttpResponse>> responses = new ArrayList<>(batch.size());
+    for (PendingRequest pendingRequest : batch) {
+      responses.add(await(pendingRequest));
+    }
+    return responses;
+  }
+
+  private Optional<HttpResponse> await(PendingRequest pendingRequest) throws InterruptedException, IOException {
+    try {
+      return pendingRequest.response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException("No response to batched request " + pendingRequest.id + " after " + timeoutMillis + " ms", e);
+    }
+  }
+
+  private List<PendingRequest> takePendingRequests() {
+    List<PendingRequest> batch = pendingRequests;
+    pendingRequests = new ArrayList<>();
+    return batch;
+  }
+
+  private void send(List<PendingRequest> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    Map<String, HttpResponse> responses = new HashMap<>();
+    Set<String> unservicedIds = new HashSet<>();
+    boolean failed = false;
+    try {
+      Optional<JSONObject> batchResponse = transport.apply(toBatchRequest(batch));
+      if (batchResponse.isPresent()) {
+        responses = fromBatchResponse(batchResponse.get());
+        unservicedIds = getUnservicedIds(batchResponse.get());
+      } else {
+        failed = true;
+      }
+      log.debug("Batch of {} requests, {} serviced", batch.size(), responses.size());
+    } catch (IOException | RuntimeException e) {
+      log.error("Failed to send a batch of " + batch.size() + " requests", e);
+      failed = true;
+    }
+    for (PendingRequest pendingRequest : batch) {
+      if (responses.containsKey(pendingRequest.id)) {
+        pendingRequest.response.complete(Optional.of(responses.get(pendingRequest.id)));
+      } else if (!failed && unservicedIds.contains(pendingRequest.id)) {
+        pendingRequest.response.complete(Optional.empty());
+      } else {
+        // neither serviced nor listed as unserviced, the instance may have run it
+        pendingRequest.response.completeExceptionally(
+          new IOException("Batch call failed for request " + pendingRequest.id));
+      }
+    }
+  }
+
+  private static Set<String> getUnservicedIds(JSONObject batchResponse) {
+    Set<String> ids = new HashSet<>();
+    Object unservicedRequests = batchResponse.get("unserviced_requests");
+    if (unservicedRequests instanceof JSONArray) {
+      for (Object id : (JSONArray) unservicedRequests) {
+        ids.add(id.toString());
+      }
+    }
+    return ids;
+  }
+
+  private JSONObject toBatchRequest(List<PendingRequest> batch) throws IOException {
+    JSONArray restRequests = new JSONArray();
+    for (PendingRequest pendingRequest : batch) {
+      JSONObject restRequest = new JSONObject();
+      restRequest.put("id", pendingRequest.id);
+      restRequest.put("method", pendingRequest.request.getMethod());
+      restRequest.put("url", getRelativeUrl(pendingRequest.request.getURI()));
+      JSONArray headers = new JSONArray();
+      headers.add(header(HttpHeaders.ACCEPT, "application/json"));
+      headers.add(header(HttpHeaders.CONTENT_TYPE, "application/json"));
+      restRequest.put("headers", headers);
+      if (pendingRequest.request instanceof HttpEntityEnclosingRequest &&
+        ((HttpEntityEnclosingRequest) pendingRequest.request).getEntity() != null) {
+        byte[] body = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) pendingRequest.request).getEntity());
+        restRequest.put("body", Base64.getEncoder().encodeToString(body));
+      }
+      restRequests.add(restRequest);
+    }
+
+    JSONObject batchRequest = new JSONObject();
+    batchRequest.put("batch_request_id", batch.get(0).id);
+    batchRequest.put("rest_requests", restRequests);
+    return batchRequest;
+  }
+
+  private static JSONObject header(String name, String value) {
+    JSONObject header = new JSONObject();
+    header.put("name", name);
+    header.put("value", value);
+    return header;
+  }
+
+  /**
+   * The sub-requests name the resource relative to the instance, eg /api/now/table/sys_user?sysparm_query=...
+   */
+  private String getRelativeUrl(URI uri) {
+    String url = uri.toString();
+    return url.startsWith(instanceUri) ? url.substring(instanceUri.length()) : uri.getRawPath() +
+      (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+  }
+
+  /**
+   * @return the serviced requests as HTTP responses, by request id
+   */
+  static Map<String, HttpResponse> fromBatchResponse(JSONObject batchResponse) {
+    Map<String, HttpResponse> responses = new HashMap<>();
+    Object servicedRequests = batchResponse.get("serviced_requests");
+    if (!(servicedRequests instanceof JSONArray)) {
+      return responses;
+    }
+    for (Object serviced : (JSONArray) servicedRequests) {
+      JSONObject servicedRequest = (JSONObject) serviced;
+      int statusCode = ((Number) servicedRequest.get("status_code")).intValue();
+      Object statusText = servicedRequest.get("status_text");
+      HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode,
+        statusText != null ? statusText.toString() : "");
+      Object headers = servicedRequest.get("headers");
+      if (headers instanceof JSONArray) {
+        for (Object header : (JSONArray) headers) {
+          response.addHeader((String) ((JSONObject) header).get("name"), (String) ((JSONObject) header).get("value"));
+        }
+      }
+      Object body = servicedRequest.get("body");
+      byte[] bodyBytes = body != null ? Base64.getDecoder().decode((String) body) : new byte[0];
+      ByteArrayEntity entity = new ByteArrayEntity(bodyBytes);
+      Header contentType = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+      entity.setContentType(contentType != null ? contentType.getValue() : "application/json");
+      response.setEntity(entity);
+      responses.put((String) servicedRequest.get("id"), response);
+    }
+    return responses;
+  }
+}
@@ -0,0 +1,157 @@
+package com.company.snow;
+
+import com.company.api.ISchemaMapping;
+import com.company.common.FieldMapping;
+
+import java.util.*;
+
+/**
+ * The columns a schema mapping reads, used to request only those columns with sysparm_fields.
+ * Paths such as "number" or "$.assigned_to.value" read a column of the table itself, paths such as
+ * "$._cmdb_ci[*].name" read a column of the entries joined under an append key.
+ */
+class SNOWFieldProjection {
+  // always requested: identity and the dates used for incremental and keyed reads
+  static final List<String> BASE_FIELDS = Arrays.asList("sys_id", "sys_updated_on", "sys_created_on");
+
+  private final Set<String> fields = new LinkedHashSet<>();
+  private final Map<String, Set<String>> relatedFields = new HashMap<>();
+  // columns read through a reference object, eg assigned_to in $.assigned_to.value
+  private final Set<String> dereferencedFields = new HashSet<>();
+  private final Map<String, Set<String>> dereferencedRelatedFields = new HashMap<>();
+
+  private SNOWFieldProjection() {
+  }
+
+  /**
+   * @return empty if there is no mapping, all columns must then be read
+   */
+  static Optional<SNOWFieldProjection> of(ISchemaMapping schemaMapping) {
+    if (schemaMapping == null || schemaMapping.getFieldMappings() == null) {
+      return Optional.empty();
+    }
+    SNOWFieldProjection projection = new SNOWFieldProjection();
+    for (FieldMapping fieldMapping : schemaMapping.getFieldMappings()) {
+      projection.addPath(fieldMapping.getExternalFieldPath());
+    }
+    return Optional.of(projection);
+  }
+
+  private void addPath(String externalFieldPath) {
+    if (externalFieldPath == null || externalFieldPath.isEmpty()) {
+      return; // fixed values
+    }
+    String path = externalFieldPath.startsWith("$.") ? externalFieldPath.substring(2) : externalFieldPath;
+    String root = firstSegment(path);
+    if (!root.startsWith("_")) {
+      fields.add(root);
+      if (path.length() > root.length()) {
+        dereferencedFields.add(root);
+      }
+      return;
+    }
+
+    // joined entries, eg _cmdb_ci[*].name
+    String relatedPath = path.substring(root.length());
+    if (relatedPath.startsWith("[*]")) {
+      relatedPath = relatedPath.substring(3);
+    }
+    if (relatedPath.startsWith(".")) {
+      relatedPath = relatedPath.substring(1);
+    }
+    Set<String> columns = relatedFields.computeIfAbsent(root, key -> new LinkedHashSet<>());
+    if (!relatedPath.isEmpty()) {
+      String relatedRoot = firstSegment(relatedPath);
+      columns.add(relatedRoot);
+      if (relatedPath.length() > relatedRoot.length()) {
+        dereferencedRelatedFields.computeIfAbsent(root, key -> new HashSet<>()).add(relatedRoot);
+      }
+    }
+  }
+
+  private static String firstSegment(String path) {
+    int end = path.length();
+    int dot = path.indexOf('.');
+    int bracket = path.indexOf('[');
+    if (dot >= 0) {
+      end = dot;
+    }
+    if (bracket >= 0 && bracket < end) {
+      end = bracket;
+    }
+    return path.substring(0, end);
+  }
+
+  /**
+   * sysparm_fields for the table itself
+   * @param joinKeys the columns holding the ids of the joined entries
+   */
+  String getFields(Collection<String> joinKeys) {
+    Set<String> columns = new LinkedHashSet<>(BASE_FIELDS);
+    columns.addAll(fields);
+    columns.addAll(joinKeys);
+    return String.join(",", columns);
+  }
+
+  /**
+   * Reference links can be left out when no mapping path goes through a reference object
+   */
+  boolean canExcludeReferenceLinks() {
+    return dereferencedFields.isEmpty();
+  }
+
+  /**
+   * sysparm_fields of the entries joined under appendKey, empty if the mapping does not name their columns
+   * @param joinKey the column of the joined entries matched against the entries
+   */
+  Optional<String> getRelatedFields(String appendKey, String joinKey) {
+    return getRelatedFields(Collections.singleton(appendKey), joinKey);
+  }
+
+  /**
+   * sysparm_fields of one lookup joined under several append keys: the columns read under any of them,
+   * empty if the mapping reads none of them or does not name the columns of one of them
+   */
+  Optional<String> getRelatedFields(Collection<String> appendKeys, String joinKey) {
+    Set<String> allColumns = new LinkedHashSet<>(BASE_FIELDS);
+    allColumns.add(joinKey);
+    boolean read = false;
+    for (String appendKey : appendKeys) {
+      Set<String> columns = relatedFields.get(appendKey);
+      if (columns != null && columns.isEmpty()) {
+        return Optional.empty();
+      } else if (columns != null) {
+        allColumns.addAll(columns);
+        read = true;
+      }
+    }
+    return read ? Optional.of(String.join(",", allColumns)) : Optional.empty();
+  }
+
+  boolean canExcludeReferenceLinks(String appendKey) {
+    return !dereferencedRelatedFields.containsKey(appendKey);
+  }
+
+  boolean canExcludeReferenceLinks(Collection<String> appendKeys) {
+    return appendKeys.stream().allMatch(this::canExcludeReferenceLinks);
+  }
+
+  /**
+   * @return the columns read under appendKey if they can be requested dot-walked from the referencing table,
+   * eg assignment_group.name: the mapping names them and reads none of them through a reference object
+   */
+  Optional<Set<String>> getDotWalkableColumns(String appendKey) {
+    Set<String> columns = relatedFields.get(appendKey);
+    if (columns == null || columns.isEmpty() || dereferencedRelatedFields.containsKey(appendKey)) {
+      return Optional.empty();
+    }
+    return Optional.of(Collections.unmodifiableSet(columns));
+  }
+
+  /**
+   * @return true if some mapping path reads the entries joined under appendKey
+   */
+  boolean readsAppendKey(String appendKey) {
+    return relatedFields.containsKey(appendKey);
+  }
+}
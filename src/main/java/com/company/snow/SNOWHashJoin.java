@@ -0,0 +1,117 @@
+package com.company.snow;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash join of a page of entries with the entries fetched for them, eg incidents with their comments.
+ * The ids of the entries are read once, into an array of one slot per entry and id column, and the hash table
+ * holding the fetched entries of each id is sized for the ids of the page up front.
+ * Not thread safe: build, add and join on the thread that owns the entries.
+ */
+class SNOWHashJoin {
+  private final JSONArray entries;
+  private final String[] appendKeys;
+  private final String[] ids; // ids[row * columns + column], null for an empty id
+  private final List<String> distinctIds;
+  private final Map<String, JSONArray> fetchedById; // null until an entry is fetched for the id
+
+  /**
+   * @param appendKeys the columns of the entries holding the ids, to the keys under which their fetched entries go
+   */
+  SNOWHashJoin(JSONArray entries, Map<String, String> appendKeys) {
+    int columns = appendKeys.size();
+    String[] entriesIdKeys = appendKeys.keySet().toArray(new String[columns]);
+    this.entries = entries;
+    this.appendKeys = appendKeys.values().toArray(new String[columns]);
+    this.ids = new String[entries.size() * columns];
+    // sized for one distinct id per entry, the usual case; references shared by many entries need fewer
+    this.distinctIds = new ArrayList<>(entries.size());
+    this.fetchedById = new HashMap<>(entries.size() * 4 / 3 + 1);
+
+    int slot = 0;
+    for (Object entry : entries) {
+      for (String entriesIdKey : entriesIdKeys) {
+        String id = getIdValue(((JSONObject) entry).get(entriesIdKey));
+        if (!id.isEmpty()) {
+          ids[slot] = id;
+          if (!fetchedById.containsKey(id)) {
+            fetchedById.put(id, null);
+            distinctIds.add(id);
+          }
+        }
+        slot++;
+      }
+    }
+  }
+
+  /**
+   * @return the distinct non-empty ids of the entries, in the order of the entries
+   */
+  List<String> getDistinctIds() {
+    return distinctIds;
+  }
+
+  /**
+   * Adds fetched entries to the hash table, those whose id is not in the page are dropped
+   *
+   * @param fetchedEntriesIdKey the column of the fetched entries holding the id they belong to
+   * @return the number of entries added
+   */
+  int add(JSONArray fetchedEntries, String fetchedEntriesIdKey) {
+    int added = 0;
+    for (Object fetchedEntry : fetchedEntries) {
+      String id = getIdValue(((JSONObject) fetchedEntry).get(fetchedEntriesIdKey));
+      JSONArray bucket = fetchedById.get(id);
+      if (bucket == null) {
+        if (!fetchedById.containsKey(id)) {
+          continue;
+        }
+        bucket = new JSONArray();
+        fetchedById.put(id, bucket);
+      }
+      bucket.add(fetchedEntry);
+      added++;
+    }
+    return added;
+  }
+
+  /**
+   * Appends to each entry the fetched entries of each of its ids; entries with nothing fetched are left as is
+   *
+   * @return the number of appended arrays
+   */
+  int join() {
+    int columns = appendKeys.length;
+    int joined = 0;
+    for (int slot = 0; slot < ids.length; slot++) {
+      if (ids[slot] == null) {
+        continue;
+      }
+      JSONArray bucket = fetchedById.get(ids[slot]);
+      if (bucket != null) {
+        ((JSONObject) entries.get(slot / columns)).put(appendKeys[slot % columns], bucket);
+        joined++;
+      }
+    }
+    return joined;
+  }
+
+  /**
+   * Special case for Requests and Request items and CMDB. Request item request id is in JSON path $request.value
+   * In the future we must implement a full-blown JSONPath solution if more cases use that
+   */
+  static String getIdValue(Object idObject) {
+    if (idObject instanceof String) {
+      return (String) idObject;
+    } else if (idObject instanceof JSONObject && ((JSONObject) idObject).get("value") != null) {
+      return (String) ((JSONObject) idObject).get("value");
+    }
+    return "";
+  }
+}
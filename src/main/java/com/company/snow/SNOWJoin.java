@@ -0,0 +1,42 @@
+package com.company.snow;
+
+import lombok.Getter;
+import org.apache.commons.lang3.tuple.Pair;
+import org.json.simple.JSONObject;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiFunction;
+
+/**
+ * A secondary lookup joined into a page of entries, eg the comments of incidents.
+ * A lookup can serve several columns of the entries that reference the same table, eg assigned_to and caller_id,
+ * the fetched entries are then appended under the append key of each column.
+ */
+@Getter
+class SNOWJoin {
+  private final Map<String, String> appendKeys; // the JSON keys containing the ids of the entries, to their append keys
+  private final String fetchedEntriesIdKey; // the JSON key of the fetched entries pointing back to the entries
+  private final BiFunction<List<String>, String, Pair<Optional<JSONObject>, String>> fetchMethod;
+
+  SNOWJoin(Map<String, String> appendKeys, String fetchedEntriesIdKey,
+           BiFunction<List<String>, String, Pair<Optional<JSONObject>, String>> fetchMethod) {
+    this.appendKeys = appendKeys;
+    this.fetchedEntriesIdKey = fetchedEntriesIdKey;
+    this.fetchMethod = fetchMethod;
+  }
+
+  SNOWJoin(String entriesIdKey, String fetchedEntriesIdKey, String appendKey,
+           BiFunction<List<String>, String, Pair<Optional<JSONObject>, String>> fetchMethod) {
+    this(Collections.singletonMap(entriesIdKey, appendKey), fetchedEntriesIdKey, fetchMethod);
+  }
+
+  /**
+   * @return the append keys, for logging
+   */
+  String getName() {
+    return String.join(",", appendKeys.values());
+  }
+}
@@ -0,0 +1,28 @@
+package com.company.snow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups the joins of a page by the table they look up, so that a page needs one lookup per table however many
+ * of its columns point there, eg assigned_to, caller_id and closed_by are served by one sys_user lookup.
+ */
+class SNOWJoinPlanner {
+
+  private SNOWJoinPlanner() {
+  }
+
+  /**
+   * @return the joins by the table and the column they look up
+   */
+  static Map<String, List<SNOWJoinRegistry.JoinDefinition>> plan(Collection<SNOWJoinRegistry.JoinDefinition> joins) {
+    Map<String, List<SNOWJoinRegistry.JoinDefinition>> plan = new LinkedHashMap<>();
+    for (SNOWJoinRegistry.JoinDefinition join : joins) {
+      plan.computeIfAbsent(join.getTable() + "." + join.getFetchedEntriesIdKey(), key -> new ArrayList<>()).add(join);
+    }
+    return plan;
+  }
+}
@@ -0,0 +1,90 @@
+package com.company.snow;
+
+import com.company.common.ContentType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import static com.company.common.ContentTypeManager.*;
+import static com.company.snow.SNOWAdapterConfig.*;
+
+/**
+ * The secondary joins of the adapter by append key.
+ * A read runs the joins of its content type that its schema mapping reads, eg $._cmdb_ci[*].name needs the
+ * _cmdb_ci join; without a mapping every join of the content type runs, but those registered as mapped only.
+ */
+class SNOWJoinRegistry {
+  private static final Map<String, JoinDefinition> joins = new LinkedHashMap<>();
+
+  @Getter
+  @AllArgsConstructor
+  static class JoinDefinition {
+    private final String appendKey;
+    private final String entriesIdKey; // the column of the entries holding the id to look up
+    private final String table;
+    private final String fetchedEntriesIdKey; // the column of the fetched entries matched against that id
+    private final Predicate<ContentType> contentTypes;
+    private final boolean mappedOnly; // run only when the mapping reads the append key
+
+    /**
+     * @return true if the join looks up the entry referenced by a column, by its sys_id
+     */
+    boolean isReference() {
+      return fetchedEntriesIdKey.equals("sys_id");
+    }
+  }
+
+  static {
+    Predicate<ContentType> tickets = contentType -> contentType.hasAncestor(CONTENT_TYPE_TICKET);
+    register(COMMENTS_APPEND_KEY, "sys_id", "sys_journal_field", "element_id",
+      contentType -> contentType.getName().equals(CONTENT_TYPE_INCIDENT));
+    register(CMDB_CI_APPEND_KEY, "cmdb_ci", TABLE_CMDB_CI, "sys_id", tickets);
+    register(ASSIGNMENT_GROUP_APPEND_KEY, "assignment_group", TABLE_USER_GROUP, "sys_id", tickets);
+    register(ASSIGNED_TO_APPEND_KEY, "assigned_to", TABLE_USER, "sys_id", tickets);
+    register(REPORTER_APPEND_KEY, "caller_id", TABLE_USER, "sys_id", tickets);
+    // the default mappings read these columns by value, the users are looked up only for mappings that read them
+    registerMappedOnly(OPENED_BY_APPEND_KEY, "opened_by", TABLE_USER, "sys_id", tickets);
+    registerMappedOnly(RESOLVED_BY_APPEND_KEY, "resolved_by", TABLE_USER, "sys_id", tickets);
+    registerMappedOnly(CLOSED_BY_APPEND_KEY, "closed_by", TABLE_USER, "sys_id", tickets);
+    // Request id of item is in JSONPath "$request.value"
+    register(SC_REQUEST_ITEMS_APPEND_KEY, "sys_id", TABLE_SC_REQUEST_ITEMS, "request",
+      contentType -> contentType.getName().equals(CONTENT_TYPE_REQUEST));
+  }
+
+  private SNOWJoinRegistry() {
+  }
+
+  private static void register(String appendKey, String entriesIdKey, String table, String fetchedEntriesIdKey,
+                               Predicate<ContentType> contentTypes) {
+    joins.put(appendKey, new JoinDefinition(appendKey, entriesIdKey, table, fetchedEntriesIdKey, contentTypes, false));
+  }
+
+  private static void registerMappedOnly(String appendKey, String entriesIdKey, String table,
+                                         String fetchedEntriesIdKey, Predicate<ContentType> contentTypes) {
+    joins.put(appendKey, new JoinDefinition(appendKey, entriesIdKey, table, fetchedEntriesIdKey, contentTypes, true));
+  }
+
+  static Optional<JoinDefinition> get(String appendKey) {
+    return Optional.ofNullable(joins.get(appendKey));
+  }
+
+  /**
+   * @return the joins of the content type that the mapping reads, all but the mapped only ones if there is no mapping
+   */
+  static List<JoinDefinition> getRequiredJoins(ContentType contentType, Optional<SNOWFieldProjection> projection) {
+    List<JoinDefinition> requiredJoins = new ArrayList<>();
+    for (JoinDefinition join : joins.values()) {
+      if (join.getContentTypes().test(contentType) &&
+        (projection.isPresent() ? projection.get().readsAppendKey(join.getAppendKey()) : !join.isMappedOnly())) {
+        requiredJoins.add(join);
+      }
+    }
+    return requiredJoins;
+  }
+}
@@ -0,0 +1,149 @@
+package com.company.snow;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The comments already read of each ticket, with the sys_updated_on of the ticket when they were read and the
+ * latest sys_created_on among them, the watermark.
+ * A ticket whose sys_updated_on has not moved since has no new comment, otherwise only its comments created since
+ * the watermark need to be read.
+ * The latest maxTickets tickets are kept in memory, all of them in the file store when there is one.
+ */
+class SNOWJournalStore {
+  private final Map<String, JSONObject> threads;
+  private final Optional<SNOWReferenceStore> fileStore;
+
+  @FunctionalInterface
+  interface CommentFetcher {
+    /**
+     * @param since the earliest sys_created_on to read, every comment if empty
+     * @return the comments of the tickets by ticket sys_id, empty if a page failed
+     */
+    Optional<Map<String, JSONArray>> fetch(List<String> ticketIds, Optional<String> since);
+  }
+
+  SNOWJournalStore(int maxTickets, Optional<SNOWReferenceStore> fileStore) {
+    this.fileStore = fileStore;
+    this.threads = new LinkedHashMap<String, JSONObject>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+        return size() > maxTickets;
+      }
+    };
+  }
+
+  /**
+   * Tickets not updated since their comments were read are served from the store, the others only fetch the
+   * comments created since the oldest of their watermarks
+   *
+   * @param ticketUpdatedOn the sys_updated_on of the tickets by sys_id
+   * @return every comment of the tickets, empty if a lookup failed and the store was left as it was
+   */
+  Optional<JSONArray> read(List<String> ticketIds, Map<String, String> ticketUpdatedOn, CommentFetcher fetcher) {
+    JSONArray result = new JSONArray();
+    List<String> newIds = new ArrayList<>();
+    Map<String, JSONArray> storedComments = new HashMap<>(); // of the updated tickets
+    String since = null;
+    for (String id : ticketIds) {
+      Optional<JSONObject> thread = get(id);
+      Optional<String> watermark = thread.flatMap(SNOWJournalStore::getWatermark);
+      if (thread.isPresent() && ticketUpdatedOn.containsKey(id) &&
+        getTicketUpdatedOn(thread.get()).equals(Optional.of(ticketUpdatedOn.get(id)))) {
+        result.addAll(getComments(thread.get())); // not updated since read
+      } else if (watermark.isPresent()) {
+        storedComments.put(id, getComments(thread.get()));
+        since = since == null || watermark.get().compareTo(since) < 0 ? watermark.get() : since;
+      } else {
+        newIds.add(id);
+      }
+    }
+
+    Optional<Map<String, JSONArray>> newComments = fetcher.fetch(newIds, Optional.empty());
+    Optional<Map<String, JSONArray>> updatedComments =
+      fetcher.fetch(new ArrayList<>(storedComments.keySet()), Optional.ofNullable(since));
+    if (!newComments.isPresent() || !updatedComments.isPresent()) {
+      return Optional.empty();
+    }
+    Map<String, JSONArray> fetchedComments = new HashMap<>(newComments.get());
+    fetchedComments.putAll(updatedComments.get());
+
+    List<String> readIds = new ArrayList<>(newIds);
+    readIds.addAll(storedComments.keySet());
+    for (String id : readIds) {
+      JSONArray comments = new JSONArray();
+      Set<String> commentIds = new HashSet<>();
+      for (Object comment : storedComments.getOrDefault(id, new JSONArray())) {
+        comments.add(comment);
+        commentIds.add((String) ((JSONObject) comment).get("sys_id"));
+      }
+      for (Object comment : fetchedComments.getOrDefault(id, new JSONArray())) {
+        if (commentIds.add((String) ((JSONObject) comment).get("sys_id"))) { // created in the watermark second
+          comments.add(comment);
+        }
+      }
+      put(id, ticketUpdatedOn.get(id), comments);
+      result.addAll(comments);
+    }
+    return Optional.of(result);
+  }
+
+  /**
+   * @return the thread of the ticket, empty if its comments were never read
+   */
+  synchronized Optional<JSONObject> get(String ticketId) {
+    JSONObject thread = threads.get(ticketId);
+    if (thread == null && fileStore.isPresent()) {
+      Optional<JSONObject> storedThread = fileStore.get().get(ticketId);
+      storedThread.ifPresent(stored -> threads.put(ticketId, stored));
+      return storedThread;
+    }
+    return Optional.ofNullable(thread);
+  }
+
+  /**
+   * @param ticketUpdatedOn the sys_updated_on of the ticket when the comments were read, null if unknown
+   * @param comments        every comment of the ticket
+   */
+  synchronized void put(String ticketId, String ticketUpdatedOn, JSONArray comments) {
+    String watermark = null;
+    for (Object comment : comments) {
+      Object createdOn = ((JSONObject) comment).get("sys_created_on");
+      if (createdOn instanceof String && (watermark == null || ((String) createdOn).compareTo(watermark) > 0)) {
+        watermark = (String) createdOn;
+      }
+    }
+
+    JSONObject thread = new JSONObject();
+    thread.put("sys_id", ticketId);
+    thread.put("ticket_updated_on", ticketUpdatedOn);
+    thread.put("watermark", watermark);
+    thread.put("comments", comments);
+    threads.put(ticketId, thread);
+    fileStore.ifPresent(store -> store.put(thread));
+  }
+
+  static Optional<String> getTicketUpdatedOn(JSONObject thread) {
+    return Optional.ofNullable((String) thread.get("ticket_updated_on"));
+  }
+
+  /**
+   * @return the latest sys_created_on of the comments, empty if there were none
+   */
+  static Optional<String> getWatermark(JSONObject thread) {
+    return Optional.ofNullable((String) thread.get("watermark"));
+  }
+
+  static JSONArray getComments(JSONObject thread) {
+    return (JSONArray) thread.get("comments");
+  }
+}
@@ -0,0 +1,110 @@
+package com.company.snow;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Reads ServiceNow responses token by token with Jackson, building the same json-simple objects as JSONParser
+ * but without first copying the whole body into a String.
+ */
+class SNOWJsonStreamReader {
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  private SNOWJsonStreamReader() {
+  }
+
+  /**
+   * Reads a whole JSON document
+   */
+  static JSONObject readObject(InputStream inputStream) throws IOException {
+    try (JsonParser parser = jsonFactory.createParser(inputStream)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Expected a JSON object at " + parser.getCurrentLocation());
+      }
+      return readObject(parser);
+    }
+  }
+
+  /**
+   * Hands every record of the top level "result" array to the consumer as soon as it is complete.
+   * All other top level fields are skipped, so at most one record is held in memory.
+   *
+   * @return the number of records read
+   */
+  static long readResult(InputStream inputStream, Consumer<JSONObject> recordConsumer) throws IOException {
+    long count = 0;
+    try (JsonParser parser = jsonFactory.createParser(inputStream)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Expected a JSON object at " + parser.getCurrentLocation());
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (!"result".equals(fieldName)) {
+          parser.skipChildren();
+        } else if (token == JsonToken.START_ARRAY) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            recordConsumer.accept(readObject(parser));
+            count++;
+          }
+        } else if (token == JsonToken.START_OBJECT) { // single entry responses
+          recordConsumer.accept(readObject(parser));
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Reads the object whose START_OBJECT is the current token
+   */
+  private static JSONObject readObject(JsonParser parser) throws IOException {
+    JSONObject jsonObject = new JSONObject();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String fieldName = parser.getCurrentName();
+      parser.nextToken();
+      jsonObject.put(fieldName, readValue(parser));
+    }
+    return jsonObject;
+  }
+
+  private static JSONArray readArray(JsonParser parser) throws IOException {
+    JSONArray jsonArray = new JSONArray();
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      jsonArray.add(readValue(parser));
+    }
+    return jsonArray;
+  }
+
+  // numbers are converted the way json-simple does: Long or Double
+  private static Object readValue(JsonParser parser) throws IOException {
+    switch (parser.getCurrentToken()) {
+      case START_OBJECT:
+        return readObject(parser);
+      case START_ARRAY:
+        return readArray(parser);
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        return parser.getLongValue();
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDoubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        throw new IOException("Unexpected token " + parser.getCurrentToken() + " at " + parser.getCurrentLocation());
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package com.company.snow;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.TimeZone;
+
+/**
+ * Keyset (seek) pagination: pages are ordered by sys_updated_on,sys_id and each page asks for the entries after
+ * the last one of the previous page, instead of skipping sysparm_offset entries.
+ * The cost of a page does not grow with its depth, and entries updated during the scan move behind the cursor
+ * rather than shifting the offsets of the following pages.
+ */
+class SNOWKeysetPagination {
+  static final String KEYSET_ORDER = "ORDERBYsys_updated_on^ORDERBYsys_id";
+
+  private SNOWKeysetPagination() {
+  }
+
+  /**
+   * The first page: the query of the request, ordered by the key.
+   * The sysparm_query parameters of the uri are combined into one, eg with the requestISEMPTY filter of sc_req_item.
+   */
+  static URI withKeysetOrder(URI uri) throws URISyntaxException {
+    String query = SNOWPartitionedReader.getQuery(uri);
+    String orderedQuery = query.isEmpty() ? KEYSET_ORDER : query + "^" + KEYSET_ORDER;
+    return new URIBuilder(uri).setParameter("sysparm_query", orderedQuery).build();
+  }
+
+  /**
+   * @return the page after the given one, empty if it was the last
+   */
+  static Optional<URI> nextPage(URI pageUri, JSONObject page, TimeZone userTimeZone) throws URISyntaxException {
+    Object result = page.get("result");
+    if (!(result instanceof JSONArray) || ((JSONArray) result).isEmpty()) {
+      return Optional.empty();
+    }
+    JSONArray entries = (JSONArray) result;
+    return nextPage(pageUri, entries.size(), (JSONObject) entries.get(entries.size() - 1), userTimeZone);
+  }
+
+  /**
+   * @param count     the number of entries in the page
+   * @param lastEntry the last entry of the page
+   * @return the page after the given one, empty if it was the last
+   */
+  static Optional<URI> nextPage(URI pageUri, long count, JSONObject lastEntry, TimeZone userTimeZone)
+    throws URISyntaxException {
+    String limitStr = getParameter(pageUri, "sysparm_limit");
+    if (lastEntry == null || limitStr == null || count < Long.parseLong(limitStr)) {
+      return Optional.empty(); // a short page is the last one
+    }
+    Object updatedOn = lastEntry.get("sys_updated_on");
+    Object sysId = lastEntry.get("sys_id");
+    if (!(updatedOn instanceof String) || !(sysId instanceof String)) {
+      throw new IllegalStateException("Keyset pagination needs sys_updated_on and sys_id in every entry");
+    }
+
+    // keep the query up to the key ordering, drop the seek clause of the previous page
+    String query = getParameter(pageUri, "sysparm_query");
+    int orderEnd = query.indexOf(KEYSET_ORDER) + KEYSET_ORDER.length();
+    String seekQuery = query.substring(0, orderEnd) + "^" +
+      after("sys_updated_on", (String) updatedOn, (String) sysId, userTimeZone);
+
+    URIBuilder uriBuilder = new URIBuilder(pageUri).setParameter("sysparm_query", seekQuery);
+    List<NameValuePair> params = uriBuilder.getQueryParams();
+    params.removeIf(pair -> pair.getName().equals("sysparm_offset")); // the key replaces the offset
+    return Optional.of(uriBuilder.setParameters(params).build());
+  }
+
+  /**
+   * @return the clause of the entries ordered by the date field,sys_id after the given key
+   */
+  static String after(String field, String date, String sysId, TimeZone userTimeZone) {
+    String value = dateValue(date, userTimeZone);
+    return field + ">=" + value + "^" + field + ">" + value + "^ORsys_id>" + sysId;
+  }
+
+  /**
+   * @return the clause of the entries ordered by the date field,sys_id up to the given key, included
+   */
+  static String upTo(String field, String date, String sysId, TimeZone userTimeZone) {
+    String value = dateValue(date, userTimeZone);
+    return field + "<=" + value + "^" + field + "<" + value + "^ORsys_id<=" + sysId;
+  }
+
+  /**
+   * @param date a date as the instance returns it, in UTC
+   * @return the date as a value of a query, which the instance reads in the time zone of its user
+   */
+  static String dateValue(String date, TimeZone userTimeZone) {
+    SimpleDateFormat utcFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    utcFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    dateFormat.setTimeZone(userTimeZone);
+    SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+    timeFormat.setTimeZone(userTimeZone);
+    try {
+      Date parsed = utcFormat.parse(date);
+      return "javascript:gs.dateGenerate('" + dateFormat.format(parsed) + "','" + timeFormat.format(parsed) + "')";
+    } catch (ParseException e) {
+      throw new IllegalArgumentException("Invalid date " + date, e);
+    }
+  }
+
+  private static String getParameter(URI uri, String name) {
+    for (NameValuePair pair : URLEncodedUtils.parse(uri, StandardCharsets.UTF_8)) {
+      if (pair.getName().equals(name)) {
+        return pair.getValue();
+      }
+    }
+    return null;
+  }
+}
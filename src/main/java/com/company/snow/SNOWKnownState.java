@@ -0,0 +1,90 @@
+package com.company.snow;
+
+import org.json.simple.JSONObject;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The last known fields of the records read or updated by an adapter, by table and sys_id, so that an update can
+ * send only the fields that changed.
+ * The fields of an update are merged in when it is sent, before the instance has answered, and the record is
+ * forgotten if the update fails: the next update of it then sends all its fields.
+ * Journal fields (comments, work_notes) add an entry on each write: they are always sent and never known.
+ * A state is trusted for ttlMillis after it was read, merging an update in does not extend it. Changes made on the
+ * instance meanwhile are not seen, and the diff accepts that the last writer loses: a field another writer changed
+ * since the read and that the update sets back to its read value is not sent, the other writer's value stays.
+ */
+class SNOWKnownState {
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final Map<String, SNOWReferenceCache> tables = new ConcurrentHashMap<>();
+
+  SNOWKnownState(int maxEntries, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Keeps a copy of the fields of an entry read from the table, the entry itself may be joined into afterwards
+   */
+  void record(String table, JSONObject entry) {
+    Object sysId = entry.get("sys_id");
+    if (sysId instanceof String) {
+      getCache(table).put((String) sysId, new JSONObject(entry));
+    }
+  }
+
+  Optional<JSONObject> get(String table, String sysId) {
+    return getCache(table).get(sysId).flatMap(known -> known);
+  }
+
+  /**
+   * @return the fields of the update that differ from the known state of the record, all of them if it is unknown
+   */
+  JSONObject diffAndMerge(String table, String sysId, JSONObject fields) {
+    SNOWReferenceCache cache = getCache(table);
+    synchronized (cache) {
+      Optional<JSONObject> known = get(table, sysId);
+      JSONObject changed = known.map(knownFields -> diff(fields, knownFields)).orElse(fields);
+      JSONObject merged = known.map(JSONObject::new).orElseGet(JSONObject::new);
+      merged.putAll(fields);
+      merged.keySet().removeAll(SNOWUpdateQueue.JOURNAL_FIELDS);
+      cache.replace(sysId, merged);
+      return changed;
+    }
+  }
+
+  void forget(String table, String sysId) {
+    getCache(table).remove(sysId);
+  }
+
+  /**
+   * @param known the fields as read from the instance or mapped from the previous record
+   * @return the fields whose value differs from the known one; fields that are not known and journal fields are kept
+   */
+  static JSONObject diff(JSONObject fields, JSONObject known) {
+    JSONObject changed = new JSONObject();
+    for (Object key : fields.keySet()) {
+      Object value = fields.get(key);
+      if (SNOWUpdateQueue.JOURNAL_FIELDS.contains(key) || !known.containsKey(key) ||
+        !normalize(value).equals(normalize(known.get(key)))) {
+        changed.put(key, value);
+      }
+    }
+    return changed;
+  }
+
+  // references are read as {link, value} unless sysparm_exclude_reference_link is set, and every value as a string
+  private static String normalize(Object value) {
+    if (value instanceof JSONObject) {
+      return SNOWHashJoin.getIdValue(value);
+    }
+    return value == null ? "" : value.toString();
+  }
+
+  private SNOWReferenceCache getCache(String table) {
+    return tables.computeIfAbsent(table, key -> new SNOWReferenceCache(maxEntries, ttlMillis));
+  }
+}
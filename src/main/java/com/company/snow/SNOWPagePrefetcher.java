@@ -0,0 +1,90 @@
+package com.company.snow;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.json.simple.JSONObject;
+
+import java.io.Closeable;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Follows the "next" links of a paginated read on a background thread, so that the following pages are
+ * downloaded while the caller joins and consumes the current one.
+ * At most lookahead fetched pages wait in the buffer, plus the one being downloaded.
+ */
+@Slf4j
+class SNOWPagePrefetcher implements Closeable {
+
+  @FunctionalInterface
+  interface PageFetcher {
+    Pair<Optional<JSONObject>, String> fetch(String nextUrlStr) throws Exception;
+  }
+
+  // marks the end of pagination in the buffer
+  private static final Pair<Optional<JSONObject>, String> END = new ImmutablePair<>(Optional.empty(), null);
+
+  private final BlockingQueue<Pair<Optional<JSONObject>, String>> pages;
+  private final Thread fetchThread;
+  private volatile Exception failure;
+  private volatile boolean closed;
+
+  SNOWPagePrefetcher(String tableName, int lookahead, PageFetcher fetcher) {
+    this.pages = new ArrayBlockingQueue<>(Math.max(1, lookahead));
+    this.fetchThread = new Thread(() -> fetchPages(fetcher), "snow-prefetch-" + tableName);
+    this.fetchThread.setDaemon(true);
+    this.fetchThread.start();
+  }
+
+  private void fetchPages(PageFetcher fetcher) {
+    try {
+      try {
+        String nextUrlStr = null;
+        do {
+          Pair<Optional<JSONObject>, String> page = fetcher.fetch(nextUrlStr);
+          nextUrlStr = page.getLeft().isPresent() ? page.getRight() : null;
+          pages.put(page);
+        } while (nextUrlStr != null && !closed);
+      } catch (InterruptedException e) {
+        throw e;
+      } catch (Exception e) {
+        log.error("Exception while prefetching pages", e);
+        failure = e;
+      }
+      pages.put(END);
+    } catch (InterruptedException e) {
+      // closed by the reader, nobody is waiting for more pages
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waits for the next page.
+   *
+   * @return the next page and its next link, or null once pagination has ended
+   * @throws Exception the exception that stopped the background fetch
+   */
+  Pair<Optional<JSONObject>, String> next() throws Exception {
+    Pair<Optional<JSONObject>, String> page = pages.take();
+    if (page == END) {
+      pages.put(END); // keep returning null on further calls
+      if (failure != null) {
+        throw failure;
+      }
+      return null;
+    }
+    return page;
+  }
+
+  /**
+   * Stops fetching, pages already buffered are dropped
+   */
+  @Override
+  public void close() {
+    closed = true;
+    fetchThread.interrupt();
+    pages.clear();
+  }
+}
@@ -0,0 +1,96 @@
+package com.company.snow;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the sysparm_limit of one table on one instance from the pages read so far.
+ * The page size grows while pages come back well under the latency and size targets, and is halved when a page
+ * is slower or larger than the targets or fails on the server side. It always stays within the configured bounds.
+ */
+@Slf4j
+class SNOWPageSizeController {
+  private static final Map<List<Object>, SNOWPageSizeController> controllers = new ConcurrentHashMap<>();
+
+  private final String key;
+  private final int minPageSize;
+  private final int maxPageSize;
+  private final long targetLatencyMillis;
+  private final long maxPageBytes;
+  private volatile int pageSize;
+
+  private SNOWPageSizeController(String key, int initialPageSize, SNOWAdapterConfig config) {
+    this.key = key;
+    this.minPageSize = Math.max(1, config.getMinPageSize());
+    this.maxPageSize = Math.max(minPageSize, config.getMaxPageSize());
+    this.targetLatencyMillis = config.getTargetPageLatencyMillis();
+    this.maxPageBytes = config.getMaxPageBytes();
+    this.pageSize = clamp(initialPageSize);
+  }
+
+  /**
+   * The controller of a table, shared by all adapters reading that table on the same instance with the same bounds
+   * and targets
+   */
+  static SNOWPageSizeController get(SNOWAdapterConfig config, String tableName, int initialPageSize) {
+    return controllers.computeIfAbsent(getKey(config, tableName),
+      key -> new SNOWPageSizeController(config.getUri() + "/" + tableName, initialPageSize, config));
+  }
+
+  private static List<Object> getKey(SNOWAdapterConfig config, String tableName) {
+    return Arrays.asList(config.getUri(), tableName, config.getMinPageSize(), config.getMaxPageSize(),
+      config.getTargetPageLatencyMillis(), config.getMaxPageBytes());
+  }
+
+  /**
+   * @return the current page size of the tables read with the config, by instance uri and table, for monitoring
+   */
+  static Map<String, Integer> getPageSizes(SNOWAdapterConfig config) {
+    Map<String, Integer> pageSizes = new TreeMap<>();
+    controllers.forEach((key, controller) -> {
+      if (key.equals(getKey(config, (String) key.get(1)))) {
+        pageSizes.put(controller.key, controller.getPageSize());
+      }
+    });
+    return pageSizes;
+  }
+
+  int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Records a page read successfully
+   */
+  synchronized void onPage(long latencyMillis, long bytes) {
+    int previous = pageSize;
+    if (latencyMillis > targetLatencyMillis || bytes > maxPageBytes) {
+      pageSize = clamp(pageSize / 2);
+    } else if (latencyMillis < targetLatencyMillis / 2 && bytes < maxPageBytes / 2) {
+      pageSize = clamp(pageSize + Math.max(1, pageSize / 2));
+    }
+    if (pageSize != previous) {
+      log.info("Page size of {} changed from {} to {} ({} ms, {} bytes)", key, previous, pageSize, latencyMillis, bytes);
+    }
+  }
+
+  /**
+   * Records a page that failed with a server error or a timeout
+   */
+  synchronized void onError() {
+    int previous = pageSize;
+    pageSize = clamp(pageSize / 2);
+    if (pageSize != previous) {
+      log.info("Page size of {} reduced from {} to {} after an error", key, previous, pageSize);
+    }
+  }
+
+  private int clamp(int size) {
+    return Math.min(maxPageSize, Math.max(minPageSize, size));
+  }
+}
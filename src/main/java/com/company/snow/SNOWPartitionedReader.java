@@ -0,0 +1,258 @@
+package com.company.snow;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a table by splitting it into ranges of sys_created_on,sys_id that are fetched concurrently.
+ * The first page is read normally, its rel="last" link gives the number of pages; the keys of the entries at evenly
+ * spaced offsets bound the ranges. Each range is paged by key: a page asks for the entries after the last one of the
+ * previous page, up to the end of the range. The key of an entry never changes, so inserts and deletes during the
+ * read shift no entry between pages or ranges, and an entry that exists for the whole read is delivered exactly once.
+ */
+@Slf4j
+class SNOWPartitionedReader {
+  // requests in flight per ServiceNow instance, shared by all adapters of the JVM, and their number
+  private static final Map<String, Semaphore> instancePermits = new ConcurrentHashMap<>();
+  private static final Map<String, Integer> instancePermitCounts = new ConcurrentHashMap<>();
+
+  static final String STABLE_ORDER = "ORDERBYsys_created_on^ORDERBYsys_id";
+
+  @FunctionalInterface
+  interface PageFetcher {
+    /**
+     * @return the page and its rel="last" link
+     */
+    Pair<Optional<JSONObject>, String> fetch(URI pageUri) throws Exception;
+  }
+
+  @FunctionalInterface
+  interface PageProcessor {
+    void process(JSONObject page) throws Exception;
+  }
+
+  private final int partitions;
+  private final Semaphore permits;
+  private final TimeZone userTimeZone;
+
+  // sys_created_on,sys_id of an entry, "yyyy-MM-dd HH:mm:ss" and sys_ids sort as text
+  private static class Key implements Comparable<Key> {
+    private final String createdOn;
+    private final String sysId;
+
+    Key(String createdOn, String sysId) {
+      this.createdOn = createdOn;
+      this.sysId = sysId;
+    }
+
+    /**
+     * @return the key of the last entry of the page, empty if the page has none
+     */
+    static Optional<Key> last(JSONObject page) {
+      Object result = page.get("result");
+      if (!(result instanceof JSONArray) || ((JSONArray) result).isEmpty()) {
+        return Optional.empty();
+      }
+      JSONArray entries = (JSONArray) result;
+      JSONObject lastEntry = (JSONObject) entries.get(entries.size() - 1);
+      Object createdOn = lastEntry.get("sys_created_on");
+      Object sysId = lastEntry.get("sys_id");
+      if (!(createdOn instanceof String) || !(sysId instanceof String)) {
+        throw new IllegalStateException("Partitioned reads need sys_created_on and sys_id in every entry");
+      }
+      return Optional.of(new Key((String) createdOn, (String) sysId));
+    }
+
+    @Override
+    public int compareTo(Key other) {
+      int compared = createdOn.compareTo(other.createdOn);
+      return compared != 0 ? compared : sysId.compareTo(other.sysId);
+    }
+  }
+
+  SNOWPartitionedReader(String instanceUri, int partitions, int maxConcurrentRequestsPerInstance,
+                        TimeZone userTimeZone) {
+    this.partitions = partitions;
+    this.userTimeZone = userTimeZone;
+    int permitCount = Math.max(1, maxConcurrentRequestsPerInstance);
+    int sharedPermitCount = instancePermitCounts.computeIfAbsent(instanceUri, uri -> permitCount);
+    if (sharedPermitCount != permitCount) {
+      log.warn("{} is already read with at most {} requests in flight, maxConcurrentRequestsPerInstance {} is ignored",
+        instanceUri, sharedPermitCount, permitCount);
+    }
+    this.permits = instancePermits.computeIfAbsent(instanceUri, uri -> new Semaphore(sharedPermitCount, true));
+  }
+
+  /**
+   * Adds the ordering that keeps offsets stable between requests: the key order if the query has none, else sys_id
+   * after the ordering of the query, whose fields may have the same value in many entries.
+   * The sysparm_query parameters of the uri are combined into one, none of their clauses is dropped.
+   */
+  static URI withStableOrder(URI uri) throws URISyntaxException {
+    String query = getQuery(uri);
+    if (query.isEmpty()) {
+      query = STABLE_ORDER;
+    } else if (!query.contains("ORDERBY")) {
+      query = query + "^" + STABLE_ORDER;
+    } else if (!query.contains("ORDERBYsys_id") && !query.contains("ORDERBYDESCsys_id")) {
+      query = query + "^ORDERBYsys_id";
+    }
+    return new URIBuilder(uri).setParameter("sysparm_query", query).build();
+  }
+
+  /**
+   * @return the sysparm_query parameters of the uri as one encoded query, eg a filter added after the query of the
+   * request; a value already part of the previous ones is not repeated
+   */
+  static String getQuery(URI uri) {
+    String query = "";
+    for (NameValuePair pair : URLEncodedUtils.parse(uri, StandardCharsets.UTF_8)) {
+      if (!pair.getName().equals("sysparm_query") || pair.getValue() == null) {
+        continue;
+      }
+      String value = StringUtils.strip(pair.getValue(), "^");
+      if (value.contains(query)) {
+        query = value;
+      } else if (!value.isEmpty() && !query.contains(value)) {
+        query = query + "^" + value;
+      }
+    }
+    return query;
+  }
+
+  /**
+   * @param firstPageUri the first page, ordered by STABLE_ORDER only
+   * @return the number of pages read
+   */
+  long read(URI firstPageUri, PageFetcher fetcher, PageProcessor processor) throws Exception {
+    Pair<Optional<JSONObject>, String> firstPage = fetchWithPermit(fetcher, firstPageUri);
+    if (!firstPage.getLeft().isPresent()) {
+      return 0;
+    }
+    String pageSizeStr = getParameter(firstPageUri, "sysparm_limit");
+    String lastLink = firstPage.getRight();
+    String lastOffsetStr = lastLink != null ? getParameter(new URI(lastLink), "sysparm_offset") : null;
+    Optional<Key> firstPageEnd = Key.last(firstPage.getLeft().get()); // before the processor joins into the page
+    processor.process(firstPage.getLeft().get());
+    if (pageSizeStr == null || lastOffsetStr == null || !firstPageEnd.isPresent()) {
+      return 1; // single page
+    }
+    long pageSize = Long.parseLong(pageSizeStr);
+    long nextPages = Long.parseLong(lastOffsetStr) / pageSize;
+    if (nextPages == 0) {
+      return 1;
+    }
+
+    // the ranges after the first page end at the keys of the entries at evenly spaced offsets, the last one is open
+    int partitionCount = (int) Math.min(partitions, nextPages);
+    List<Key> bounds = new ArrayList<>();
+    bounds.add(firstPageEnd.get());
+    for (int partition = 1; partition < partitionCount; partition++) {
+      long offset = pageSize + nextPages * pageSize * partition / partitionCount - 1;
+      URI boundUri = new URIBuilder(firstPageUri)
+        .setParameter("sysparm_offset", "" + offset)
+        .setParameter("sysparm_limit", "1")
+        .setParameter("sysparm_fields", "sys_created_on,sys_id")
+        .build();
+      Key previousBound = bounds.get(bounds.size() - 1);
+      fetchWithPermit(fetcher, boundUri).getLeft().flatMap(Key::last)
+        .filter(bound -> bound.compareTo(previousBound) > 0) // entries deleted meanwhile can move it back
+        .ifPresent(bounds::add);
+    }
+    log.info("Reading about {} pages of {} records in {} partitions", nextPages + 1, pageSize, bounds.size());
+
+    AtomicLong pageCount = new AtomicLong(1);
+    ExecutorService executor = Executors.newFixedThreadPool(bounds.size());
+    try {
+      List<Future<?>> futures = new ArrayList<>(bounds.size());
+      for (int partition = 0; partition < bounds.size(); partition++) {
+        Key rangeStart = bounds.get(partition);
+        Optional<Key> rangeEnd = partition + 1 < bounds.size() ? Optional.of(bounds.get(partition + 1)) :
+          Optional.empty();
+        futures.add(executor.submit(() -> {
+          readRange(firstPageUri, rangeStart, rangeEnd, pageSize, fetcher, processor, pageCount);
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          futures.forEach(f -> f.cancel(true));
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return pageCount.get();
+  }
+
+  /**
+   * Reads the entries after rangeStart up to rangeEnd, included, a page after the other
+   */
+  private void readRange(URI firstPageUri, Key rangeStart, Optional<Key> rangeEnd, long pageSize,
+                         PageFetcher fetcher, PageProcessor processor, AtomicLong pageCount) throws Exception {
+    String rangeQuery = getQuery(firstPageUri) + rangeEnd.map(end ->
+      "^" + SNOWKeysetPagination.upTo("sys_created_on", end.createdOn, end.sysId, userTimeZone)).orElse("");
+    Key after = rangeStart;
+    while (true) {
+      URIBuilder uriBuilder = new URIBuilder(firstPageUri).setParameter("sysparm_query",
+        rangeQuery + "^" + SNOWKeysetPagination.after("sys_created_on", after.createdOn, after.sysId, userTimeZone));
+      List<NameValuePair> params = uriBuilder.getQueryParams();
+      params.removeIf(pair -> pair.getName().equals("sysparm_offset")); // the key replaces the offset
+      Optional<JSONObject> page = fetchWithPermit(fetcher, uriBuilder.setParameters(params).build()).getLeft();
+      Optional<Key> pageEnd = page.flatMap(Key::last);
+      if (!pageEnd.isPresent()) {
+        return;
+      }
+      long count = ((JSONArray) page.get().get("result")).size();
+      processor.process(page.get());
+      pageCount.incrementAndGet();
+      if (count < pageSize) {
+        return; // a short page is the last one of the range
+      }
+      after = pageEnd.get();
+    }
+  }
+
+  private Pair<Optional<JSONObject>, String> fetchWithPermit(PageFetcher fetcher, URI pageUri) throws Exception {
+    permits.acquire();
+    try {
+      return fetcher.fetch(pageUri);
+    } finally {
+      permits.release();
+    }
+  }
+
+  private static String getParameter(URI uri, String name) {
+    for (NameValuePair pair : URLEncodedUtils.parse(uri, StandardCharsets.UTF_8)) {
+      if (pair.getName().equals(name)) {
+        return pair.getValue();
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,170 @@
+package com.company.snow;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by all adapters of the JVM that call the same ServiceNow instance, plus the retry policy
+ * for the responses that ask us to slow down (429 and 503).
+ * A 429 was refused before it ran and is retried whatever its method. A 503 may come from a node that failed while
+ * running the request, so only idempotent requests are retried on it.
+ * A Retry-After header pauses every request to the instance until it has passed, without it the retried request
+ * backs off exponentially on its own.
+ */
+@Slf4j
+class SNOWRateLimiter {
+  private static final Map<String, SNOWRateLimiter> limiters = new ConcurrentHashMap<>();
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  private static final List<String> IDEMPOTENT_METHODS = Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE");
+
+  // delays the async retries, the tasks only complete futures
+  private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "snow-rate-limiter");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final double requestsPerSecond;
+  private final double nanosPerPermit; // 0 when unlimited
+  private final double maxPermits;
+  private double storedPermits;
+  private long lastRefillNanos = System.nanoTime();
+  private long pausedUntilNanos = lastRefillNanos;
+
+  private final int maxRetries;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+
+  private SNOWRateLimiter(SNOWAdapterConfig config) {
+    this.requestsPerSecond = config.getRequestsPerSecond();
+    this.nanosPerPermit = requestsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / requestsPerSecond : 0;
+    this.maxPermits = Math.max(1, requestsPerSecond); // bursts of up to one second of requests
+    this.storedPermits = maxPermits;
+    this.maxRetries = config.getMaxRetries();
+    this.initialBackoffMillis = config.getInitialBackoffMillis();
+    this.maxBackoffMillis = config.getMaxBackoffMillis();
+  }
+
+  /**
+   * The limiter of the instance, its rate and retry policy are those of the first adapter created for it
+   */
+  static SNOWRateLimiter get(SNOWAdapterConfig config) {
+    SNOWRateLimiter limiter = limiters.computeIfAbsent(config.getUri(), uri -> new SNOWRateLimiter(config));
+    if (limiter.requestsPerSecond != config.getRequestsPerSecond() || limiter.maxRetries != config.getMaxRetries() ||
+      limiter.initialBackoffMillis != config.getInitialBackoffMillis() ||
+      limiter.maxBackoffMillis != config.getMaxBackoffMillis()) {
+      log.warn("{} is already limited to {} requests per second with {} retries backing off from {} to {} ms, the " +
+          "rate limit and retries of this adapter are ignored", config.getUri(), limiter.requestsPerSecond,
+        limiter.maxRetries, limiter.initialBackoffMillis, limiter.maxBackoffMillis);
+    }
+    return limiter;
+  }
+
+  /**
+   * Takes a permit, waiting until the bucket has one
+   */
+  void acquire() throws InterruptedException {
+    long delayMillis = reserve();
+    if (delayMillis > 0) {
+      Thread.sleep(delayMillis);
+    }
+  }
+
+  /**
+   * Takes a permit that becomes usable after the returned delay
+   *
+   * @return the delay in milliseconds, 0 if the request can be sent now
+   */
+  synchronized long reserve() {
+    long now = System.nanoTime();
+    long delayNanos = Math.max(0, pausedUntilNanos - now);
+    if (nanosPerPermit > 0) {
+      storedPermits = Math.min(maxPermits, storedPermits + (now - lastRefillNanos) / nanosPerPermit);
+      lastRefillNanos = now;
+      storedPermits -= 1;
+      if (storedPermits < 0) {
+        // the permit is borrowed from the future, later callers queue behind it
+        delayNanos = Math.max(delayNanos, (long) (-storedPermits * nanosPerPermit));
+      }
+    }
+    return TimeUnit.NANOSECONDS.toMillis(delayNanos);
+  }
+
+  private synchronized void pause(long millis) {
+    pausedUntilNanos = Math.max(pausedUntilNanos, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /**
+   * @param attempt the number of retries already made for the request
+   * @return how long to wait before retrying, empty if the response is final
+   */
+  Optional<Long> getRetryDelay(HttpRequest httpRequest, HttpResponse httpResponse, int attempt) {
+    int statusCode = httpResponse.getStatusLine().getStatusCode();
+    boolean retryable = statusCode == SC_TOO_MANY_REQUESTS || (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE &&
+      IDEMPOTENT_METHODS.contains(httpRequest.getRequestLine().getMethod()));
+    if (!retryable || attempt >= maxRetries) {
+      return Optional.empty();
+    }
+
+    Optional<Long> retryAfter = getRetryAfterMillis(httpResponse);
+    long delayMillis;
+    if (retryAfter.isPresent()) {
+      delayMillis = retryAfter.get();
+      pause(delayMillis); // the whole instance is over quota, not only this request
+    } else {
+      long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt, 30));
+      delayMillis = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1); // jitter spreads the retries
+    }
+    log.warn("HTTP {} from ServiceNow, retry {} of {} in {} ms", statusCode, attempt + 1, maxRetries, delayMillis);
+    return Optional.of(delayMillis);
+  }
+
+  /**
+   * Retry-After is either a number of seconds or an HTTP date
+   */
+  static Optional<Long> getRetryAfterMillis(HttpResponse httpResponse) {
+    Header header = httpResponse.getFirstHeader("Retry-After");
+    if (header == null || header.getValue() == null) {
+      return Optional.empty();
+    }
+    String value = header.getValue().trim();
+    try {
+      return Optional.of(TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value))));
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value);
+      if (date == null) {
+        log.warn("Ignoring invalid Retry-After header: {}", value);
+        return Optional.empty();
+      }
+      return Optional.of(Math.max(0, date.getTime() - System.currentTimeMillis()));
+    }
+  }
+
+  /**
+   * @return a future completed after the delay, without holding a thread
+   */
+  static CompletableFuture<Void> after(long delayMillis) {
+    if (delayMillis <= 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    scheduler.schedule(() -> future.complete(null), delayMillis, TimeUnit.MILLISECONDS);
+    return future;
+  }
+}
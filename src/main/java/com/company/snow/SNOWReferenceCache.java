@@ -0,0 +1,100 @@
+package com.company.snow;
+
+import org.json.simple.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Least recently used cache of referenced entries (users, groups, CIs) by sys_id, whose entries expire after ttlMillis.
+ * Ids that the instance does not know are cached too, so that dangling references are not looked up on every page.
+ * The cached JSONObjects are shared by every entry joined with them and must be treated as read only.
+ */
+class SNOWReferenceCache {
+  // cached for ids the lookup did not return
+  private static final JSONObject ABSENT = new JSONObject();
+
+  private final long ttlMillis;
+  private final Map<String, CachedEntry> entries;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  private static class CachedEntry {
+    private final JSONObject entry;
+    private final long expiresAtMillis;
+
+    CachedEntry(JSONObject entry, long expiresAtMillis) {
+      this.entry = entry;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+
+  SNOWReferenceCache(int maxEntries, long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<String, CachedEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedEntry> eldest) {
+        if (size() > maxEntries) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return empty on a miss, an empty Optional inside if the id is known to have no entry
+   */
+  synchronized Optional<Optional<JSONObject>> get(String sysId) {
+    CachedEntry cached = entries.get(sysId);
+    if (cached == null || cached.expiresAtMillis < System.currentTimeMillis()) {
+      if (cached != null) {
+        entries.remove(sysId);
+      }
+      misses++;
+      return Optional.empty();
+    }
+    hits++;
+    return Optional.of(cached.entry == ABSENT ? Optional.empty() : Optional.of(cached.entry));
+  }
+
+  synchronized void put(String sysId, JSONObject entry) {
+    entries.put(sysId, new CachedEntry(entry, System.currentTimeMillis() + ttlMillis));
+  }
+
+  synchronized void putAbsent(String sysId) {
+    put(sysId, ABSENT);
+  }
+
+  /**
+   * Replaces the entry without extending its expiry, put if the id is not cached
+   */
+  synchronized void replace(String sysId, JSONObject entry) {
+    CachedEntry cached = entries.get(sysId);
+    if (cached == null || cached.expiresAtMillis < System.currentTimeMillis()) {
+      put(sysId, entry);
+    } else {
+      entries.put(sysId, new CachedEntry(entry, cached.expiresAtMillis));
+    }
+  }
+
+  synchronized void remove(String sysId) {
+    entries.remove(sysId);
+  }
+
+  /**
+   * @return hits, misses, evictions and size, for monitoring
+   */
+  synchronized Map<String, Long> getStats() {
+    Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    stats.put("evictions", evictions);
+    stats.put("size", (long) entries.size());
+    return stats;
+  }
+}
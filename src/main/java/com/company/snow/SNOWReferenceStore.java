@@ -0,0 +1,299 @@
+package com.company.snow;
+
+import lombok.extern.slf4j.Slf4j;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Referenced entries of one table (users, groups, CIs) kept in a file, so that they survive restarts.
+ * The file is an append log of one JSON entry per line, the last line of a sys_id wins; the position of that line
+ * is indexed in memory by sys_id and the entry is read back from the file when joined. Once most of the lines are
+ * superseded the file is compacted, on load and while entries are put.
+ * The store is brought up to date by re-reading the entries updated on the instance since the watermark. The
+ * watermark starts at the sys_updated_on of the first entry stored, and only a sync moves it on, to the latest
+ * sys_updated_on it read: an entry stored later may be newer than the updates of the others not synced yet.
+ * It is kept in a file next to the entries, <table>.watermark.
+ */
+@Slf4j
+class SNOWReferenceStore {
+  // one store per file in the JVM, two appenders would interleave their lines
+  private static final Map<Path, SNOWReferenceStore> stores = new ConcurrentHashMap<>();
+  private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+  private final Path file;
+  private final Path watermarkFile;
+  private final String table;
+  private final Map<String, Location> index = new ConcurrentHashMap<>();
+  // reads run alongside appends, compaction moves every line and waits for them
+  private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+  private FileChannel channel;
+  private long size;
+  private long liveBytes; // of the lines still indexed
+  private String watermark = ""; // sys_updated_on the next sync starts from, "yyyy-MM-dd HH:mm:ss" sorts as text
+  private long lastSyncMillis;
+
+  private static class Location {
+    private final long offset;
+    private final int length;
+
+    Location(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private SNOWReferenceStore(Path file, String table) {
+    this.file = file;
+    this.watermarkFile = file.resolveSibling(table + ".watermark");
+    this.table = table;
+  }
+
+  /**
+   * @return the store of the table under directory, loaded from its file the first time
+   */
+  static SNOWReferenceStore get(Path directory, String table) {
+    Path file = directory.resolve(table + ".jsonl").toAbsolutePath();
+    return stores.computeIfAbsent(file, key -> {
+      SNOWReferenceStore store = new SNOWReferenceStore(key, table);
+      store.load();
+      return store;
+    });
+  }
+
+  /**
+   * Closes the file, the next get of the table loads it again
+   */
+  static void close(Path directory, String table) {
+    SNOWReferenceStore store = stores.remove(directory.resolve(table + ".jsonl").toAbsolutePath());
+    if (store != null) {
+      store.close();
+    }
+  }
+
+  private synchronized void close() {
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      log.error("Failed to close the reference store " + file, e);
+    }
+    channel = null;
+  }
+
+  /**
+   * Indexes the lines of the file, drops a last line cut short by a crash and compacts the file if most of its
+   * lines were superseded
+   */
+  private synchronized void load() {
+    try {
+      Files.createDirectories(file.getParent());
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      if (Files.exists(watermarkFile)) {
+        watermark = new String(Files.readAllBytes(watermarkFile), StandardCharsets.UTF_8).trim();
+      }
+      liveBytes = index();
+      channel.truncate(size);
+      compactIfSuperseded();
+      log.info("Loaded {} {} entries from {}, watermark {}", index.size(), table, file, watermark);
+    } catch (IOException e) {
+      log.error("Failed to load the reference store " + file + ", starting empty", e);
+      index.clear();
+      size = 0;
+    }
+  }
+
+  /**
+   * Skips the lines that cannot be parsed, the following ones are still indexed
+   *
+   * @return the number of bytes of the lines still indexed
+   */
+  private long index() throws IOException {
+    JSONParser parser = new JSONParser();
+    BufferedReader reader = new BufferedReader(Channels.newReader(channel.position(0), StandardCharsets.UTF_8.name()));
+    long offset = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      int length = line.getBytes(StandardCharsets.UTF_8).length;
+      if (offset + length >= channel.size()) {
+        break; // no line feed, the write was interrupted
+      }
+      try {
+        JSONObject entry = (JSONObject) parser.parse(line);
+        index.put((String) entry.get("sys_id"), new Location(offset, length));
+        if (!Files.exists(watermarkFile)) {
+          startWatermark(entry); // a store written before the watermark file, the oldest entry is the safe start
+        }
+      } catch (ParseException | ClassCastException | NullPointerException e) {
+        log.warn("Skipping an invalid line at offset {} of the reference store {}", offset, file);
+      }
+      offset += length + 1;
+    }
+    size = offset;
+    return index.values().stream().mapToLong(location -> location.length + 1).sum();
+  }
+
+  private void compactIfSuperseded() throws IOException {
+    if (size > 2 * liveBytes && size > MIN_COMPACT_BYTES) {
+      compact();
+    }
+  }
+
+  private void compact() throws IOException {
+    Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+    Map<String, Location> compactedIndex = new ConcurrentHashMap<>();
+    long offset = 0;
+    try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      for (Map.Entry<String, Location> indexed : index.entrySet()) {
+        ByteBuffer line = ByteBuffer.allocate(indexed.getValue().length + 1);
+        channel.read(line, indexed.getValue().offset);
+        line.flip();
+        out.write(line);
+        compactedIndex.put(indexed.getKey(), new Location(offset, indexed.getValue().length));
+        offset += indexed.getValue().length + 1;
+      }
+      out.force(true);
+    }
+    // the open channel still reads the old file until it is closed, a failed move leaves the store as it was
+    Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    FileChannel compactedChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    compactionLock.writeLock().lock();
+    try {
+      channel.close();
+      channel = compactedChannel;
+      index.clear();
+      index.putAll(compactedIndex);
+      size = offset;
+      liveBytes = offset;
+    } finally {
+      compactionLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the stored entry, empty if the store has never seen the id or cannot read it
+   */
+  Optional<JSONObject> get(String sysId) {
+    compactionLock.readLock().lock();
+    try {
+      Location location = index.get(sysId);
+      if (location == null || channel == null) {
+        return Optional.empty();
+      }
+      ByteBuffer line = ByteBuffer.allocate(location.length);
+      while (line.hasRemaining()) { // positional reads do not move the channel, appends can run meanwhile
+        if (channel.read(line, location.offset + line.position()) < 0) {
+          return Optional.empty();
+        }
+      }
+      return Optional.of((JSONObject) new JSONParser().parse(new String(line.array(), StandardCharsets.UTF_8)));
+    } catch (IOException | ParseException e) {
+      log.error("Failed to read " + sysId + " from the reference store " + file, e);
+      return Optional.empty();
+    } finally {
+      compactionLock.readLock().unlock();
+    }
+  }
+
+  boolean contains(String sysId) {
+    return index.containsKey(sysId);
+  }
+
+  /**
+   * Appends the entry, the store now returns it for its sys_id
+   */
+  synchronized void put(JSONObject entry) {
+    Object sysId = entry.get("sys_id");
+    if (!(sysId instanceof String) || channel == null) {
+      return;
+    }
+    byte[] line = (entry.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(line);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, size + buffer.position());
+      }
+      Location superseded = index.put((String) sysId, new Location(size, line.length - 1));
+      size += line.length;
+      liveBytes += line.length - (superseded == null ? 0 : superseded.length + 1);
+      if (watermark.isEmpty()) {
+        startWatermark(entry);
+        if (!watermark.isEmpty()) {
+          writeWatermark();
+        }
+      }
+      compactIfSuperseded();
+    } catch (IOException e) {
+      log.error("Failed to write " + sysId + " to the reference store " + file, e);
+    }
+  }
+
+  // the entry was read from the instance at or after its sys_updated_on, later updates of it are newer
+  private void startWatermark(JSONObject entry) {
+    Object updatedOn = entry.get("sys_updated_on");
+    if (updatedOn instanceof String && (watermark.isEmpty() || ((String) updatedOn).compareTo(watermark) < 0)) {
+      watermark = (String) updatedOn;
+    }
+  }
+
+  /**
+   * Moves the watermark to the latest sys_updated_on read by a complete sync, the entries are up to date until then
+   */
+  synchronized void advanceWatermark(String updatedOn) {
+    if (updatedOn.compareTo(watermark) > 0) {
+      watermark = updatedOn;
+      writeWatermark();
+    }
+  }
+
+  private void writeWatermark() {
+    Path written = watermarkFile.resolveSibling(watermarkFile.getFileName() + ".tmp");
+    try {
+      Files.write(written, watermark.getBytes(StandardCharsets.UTF_8));
+      Files.move(written, watermarkFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("Failed to write the watermark of the reference store " + file, e);
+    }
+  }
+
+  /**
+   * @return the sys_updated_on the next sync starts from, empty if there are no entries
+   */
+  synchronized Optional<String> getWatermark() {
+    return watermark.isEmpty() ? Optional.empty() : Optional.of(watermark);
+  }
+
+  /**
+   * @return true once per interval, for the caller to sync the store
+   */
+  synchronized boolean isSyncDue(long intervalMillis) {
+    long now = System.currentTimeMillis();
+    if (now - lastSyncMillis < intervalMillis) {
+      return false;
+    }
+    lastSyncMillis = now;
+    return true;
+  }
+
+  int size() {
+    return index.size();
+  }
+}
@@ -0,0 +1,110 @@
+package com.company.snow;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the OAuth access token of an adapter valid, refreshing it with the refresh token shortly before it expires
+ * rather than after a request has failed with it.
+ */
+@Slf4j
+class SNOWTokenManager {
+  private final SNOWAdapterConfig config;
+  private final CloseableHttpClient httpClient;
+
+  private String accessToken;
+  private String refreshToken;
+  private long expiresAtMillis; // 0 when unknown, the token is then refreshed only when rejected
+  // after a failed refresh the next one waits, doubling from initialBackoffMillis up to maxBackoffMillis
+  private long refreshBackoffMillis;
+  private long nextRefreshMillis;
+
+  SNOWTokenManager(SNOWAdapterConfig config, CloseableHttpClient httpClient) {
+    this.config = config;
+    this.httpClient = httpClient;
+    this.accessToken = config.getAccessToken();
+    this.refreshToken = config.getRefreshToken();
+    this.expiresAtMillis = config.getAccessTokenExpiresAt();
+  }
+
+  /**
+   * @return the access token, refreshed first if it is about to expire
+   */
+  synchronized String getAccessToken() {
+    boolean expiring = expiresAtMillis > 0 &&
+      System.currentTimeMillis() >= expiresAtMillis - config.getTokenRefreshSkewMillis();
+    if (accessToken == null || expiring) {
+      refresh();
+    }
+    return accessToken;
+  }
+
+  /**
+   * Gets a new access token, eg after the current one was rejected, unless a refresh failed too recently
+   *
+   * @return true if the token was refreshed
+   */
+  synchronized boolean refresh() {
+    if (System.currentTimeMillis() < nextRefreshMillis) {
+      return false;
+    }
+    if (refreshNow()) {
+      refreshBackoffMillis = 0;
+      return true;
+    }
+    refreshBackoffMillis = refreshBackoffMillis == 0 ? config.getInitialBackoffMillis() :
+      Math.min(config.getMaxBackoffMillis(), refreshBackoffMillis * 2);
+    nextRefreshMillis = System.currentTimeMillis() + refreshBackoffMillis;
+    log.warn("Not refreshing the access token for {} again in the next {} ms", config.getUri(), refreshBackoffMillis);
+    return false;
+  }
+
+  private boolean refreshNow() {
+    HttpPost tokenRequest = new HttpPost(config.getUri() + "/oauth_token.do");
+    tokenRequest.setConfig(SNOWAdapter.NO_COOKIE_REQUEST_CONFIG);
+    tokenRequest.setHeader(HttpHeaders.ACCEPT, "application/json");
+    List<NameValuePair> params = new ArrayList<>();
+    params.add(new BasicNameValuePair("grant_type", "refresh_token"));
+    params.add(new BasicNameValuePair("client_id", config.getClientId()));
+    params.add(new BasicNameValuePair("client_secret", config.getClientSecret()));
+    params.add(new BasicNameValuePair("refresh_token", refreshToken));
+    tokenRequest.setEntity(new UrlEncodedFormEntity(params, StandardCharsets.UTF_8));
+
+    try (CloseableHttpResponse httpResponse = httpClient.execute(tokenRequest)) {
+      String body = EntityUtils.toString(httpResponse.getEntity());
+      if (httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+        log.error("Failed to refresh the access token, HTTP error: " + httpResponse.getStatusLine().getStatusCode() + body);
+        return false;
+      }
+      JSONObject tokenObject = (JSONObject) new JSONParser().parse(body);
+      accessToken = (String) tokenObject.get("access_token");
+      if (tokenObject.get("refresh_token") != null) {
+        refreshToken = (String) tokenObject.get("refresh_token"); // rotated by the instance
+      }
+      Object expiresIn = tokenObject.get("expires_in");
+      expiresAtMillis = expiresIn != null ?
+        System.currentTimeMillis() + Long.parseLong(expiresIn.toString()) * 1000 : 0;
+      log.info("Refreshed the access token for {}, expires in {} s", config.getUri(), expiresIn);
+      return true;
+    } catch (IOException | ParseException | RuntimeException e) {
+      log.error("Failed to refresh the access token", e);
+      return false;
+    }
+  }
+}
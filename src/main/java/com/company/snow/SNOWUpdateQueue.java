@@ -0,0 +1,178 @@
+package com.company.snow;
+
+import com.company.api.IAdapterResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Write-behind updates: the updates of a record made within windowMillis of the first one are merged, the later
+ * value of a field winning, and sent as one request once the window has passed. Every caller gets the response of
+ * the request that carried its update.
+ * Journal fields (comments, work_notes) add an entry on each write instead of replacing a value, an update that
+ * sets one already pending is sent in a request of its own rather than merged, so that no entry is lost.
+ * The requests of a record are sent one after the other, in the order of its updates.
+ * Callers that wait for the response do not wait for the window: updateNow sends their update right away, with the
+ * pending updates of the record merged in.
+ */
+@Slf4j
+class SNOWUpdateQueue {
+  // fields that add a journal entry on each write rather than hold a value
+  static final Set<String> JOURNAL_FIELDS = new HashSet<>(Arrays.asList("comments", "work_notes"));
+
+  // only schedules the flushes, the requests are sent by the sender
+  private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "snow-update-queue");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @FunctionalInterface
+  interface Sender {
+    CompletableFuture<IAdapterResponse> send(String table, String sysId, JSONObject fields);
+  }
+
+  private final long windowMillis;
+  private final Sender sender;
+  private final Map<String, PendingUpdate> pendingUpdates = new HashMap<>(); // by table and sys_id
+  private final Map<String, CompletableFuture<IAdapterResponse>> lastSends = new HashMap<>();
+
+  private static class PendingUpdate {
+    private final String table;
+    private final String sysId;
+    private final JSONObject fields = new JSONObject();
+    private final List<CompletableFuture<IAdapterResponse>> callers = new ArrayList<>();
+
+    PendingUpdate(String table, String sysId) {
+      this.table = table;
+      this.sysId = sysId;
+    }
+  }
+
+  SNOWUpdateQueue(long windowMillis, Sender sender) {
+    this.windowMillis = windowMillis;
+    this.sender = sender;
+  }
+
+  /**
+   * @return the response of the request that carries the update
+   */
+  synchronized CompletableFuture<IAdapterResponse> update(String table, String sysId, JSONObject fields) {
+    String key = table + "/" + sysId;
+    PendingUpdate pendingUpdate = pendingUpdates.get(key);
+    if (pendingUpdate != null && setsPendingJournalField(pendingUpdate, fields)) {
+      flush(key); // a second journal entry, merging would drop the first one
+      pendingUpdate = null;
+    }
+    if (pendingUpdate == null) {
+      PendingUpdate newUpdate = new PendingUpdate(table, sysId);
+      pendingUpdates.put(key, newUpdate);
+      scheduler.schedule(() -> flush(key, newUpdate), windowMillis, TimeUnit.MILLISECONDS);
+      pendingUpdate = newUpdate;
+    }
+    pendingUpdate.fields.putAll(fields);
+    CompletableFuture<IAdapterResponse> caller = new CompletableFuture<>();
+    pendingUpdate.callers.add(caller);
+    return caller;
+  }
+
+  /**
+   * Sends the update without waiting for the window, merged with the pending updates of the record
+   *
+   * @return the response of the request that carries the update
+   */
+  synchronized CompletableFuture<IAdapterResponse> updateNow(String table, String sysId, JSONObject fields) {
+    CompletableFuture<IAdapterResponse> caller = update(table, sysId, fields);
+    flush(table + "/" + sysId);
+    return caller;
+  }
+
+  private static boolean setsPendingJournalField(PendingUpdate pendingUpdate, JSONObject fields) {
+    for (Object field : fields.keySet()) {
+      if (JOURNAL_FIELDS.contains(field) && pendingUpdate.fields.containsKey(field)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sends the update when its window has passed, unless it was flushed before
+   */
+  private synchronized void flush(String key, PendingUpdate scheduledUpdate) {
+    if (pendingUpdates.get(key) == scheduledUpdate) {
+      flush(key);
+    }
+  }
+
+  private synchronized void flush(String key) {
+    PendingUpdate pendingUpdate = pendingUpdates.remove(key);
+    if (pendingUpdate == null) {
+      return; // already flushed
+    }
+    CompletableFuture<IAdapterResponse> previousSend = lastSends.get(key);
+    CompletableFuture<IAdapterResponse> send = previousSend == null ?
+      sendNow(pendingUpdate) :
+      previousSend.handle((response, throwable) -> null).thenCompose(ignored -> sendNow(pendingUpdate));
+    lastSends.put(key, send);
+
+    send.whenComplete((response, throwable) -> {
+      synchronized (this) {
+        lastSends.remove(key, send);
+      }
+      for (CompletableFuture<IAdapterResponse> caller : pendingUpdate.callers) {
+        if (throwable != null) {
+          caller.completeExceptionally(throwable);
+        } else {
+          caller.complete(response);
+        }
+      }
+    });
+  }
+
+  private CompletableFuture<IAdapterResponse> sendNow(PendingUpdate pendingUpdate) {
+    if (pendingUpdate.callers.size() > 1) {
+      log.debug("Sending {} updates of {} {} as one", pendingUpdate.callers.size(), pendingUpdate.table,
+        pendingUpdate.sysId);
+    }
+    try {
+      return sender.send(pendingUpdate.table, pendingUpdate.sysId, pendingUpdate.fields);
+    } catch (RuntimeException e) {
+      CompletableFuture<IAdapterResponse> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+
+  /**
+   * Sends the pending updates now and waits for every request in flight, eg before the adapter closes
+   */
+  void drain(long timeoutMillis) {
+    List<CompletableFuture<IAdapterResponse>> sends;
+    synchronized (this) {
+      new ArrayList<>(pendingUpdates.keySet()).forEach(this::flush);
+      sends = new ArrayList<>(lastSends.values());
+    }
+    try {
+      CompletableFuture.allOf(sends.toArray(new CompletableFuture[0])).get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted while sending the queued updates", e);
+    } catch (ExecutionException | TimeoutException e) {
+      log.error("Failed to send the queued updates", e);
+    }
+  }
+}
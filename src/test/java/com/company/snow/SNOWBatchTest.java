@@ -0,0 +1,240 @@
+package com.company.snow;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batched lookups against a local stub of the Batch API, that services every sub-request but the ones for unserviced
+ */
+public class SNOWBatchTest {
+
+  private HttpServer server;
+  private SNOWAdapter adapter;
+  private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+  private final List<String> directRequests = Collections.synchronizedList(new ArrayList<>());
+  private volatile String unserviced = "none";
+  private volatile boolean batchFails = false;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/now/v1/batch", exchange -> {
+      JSONObject batchRequest;
+      try (InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+        batchRequest = (JSONObject) new JSONParser().parse(reader);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+      JSONArray restRequests = (JSONArray) batchRequest.get("rest_requests");
+      batchSizes.add(restRequests.size());
+      if (batchFails) {
+        exchange.sendResponseHeaders(500, -1);
+        exchange.close();
+        return;
+      }
+      JSONArray servicedRequests = new JSONArray();
+      JSONArray unservicedRequests = new JSONArray();
+      for (Object restRequest : restRequests) {
+        String url = (String) ((JSONObject) restRequest).get("url");
+        if (url.contains(unserviced)) {
+          unservicedRequests.add(((JSONObject) restRequest).get("id"));
+          continue;
+        }
+        JSONObject servicedRequest = new JSONObject();
+        servicedRequest.put("id", ((JSONObject) restRequest).get("id"));
+        servicedRequest.put("status_code", 200L);
+        servicedRequest.put("status_text", "OK");
+        servicedRequest.put("headers", new JSONArray());
+        servicedRequest.put("body", Base64.getEncoder().encodeToString(
+          comments(URI.create(url)).getBytes(StandardCharsets.UTF_8)));
+        servicedRequests.add(servicedRequest);
+      }
+      JSONObject batchResponse = new JSONObject();
+      batchResponse.put("batch_request_id", batchRequest.get("batch_request_id"));
+      batchResponse.put("serviced_requests", servicedRequests);
+      batchResponse.put("unserviced_requests", unservicedRequests);
+      respond(exchange, batchResponse.toJSONString());
+    });
+    server.createContext("/api/now/table/", exchange -> {
+      directRequests.add(exchange.getRequestURI().toString());
+      respond(exchange, comments(exchange.getRequestURI()));
+    });
+    server.start();
+
+    SNOWAdapterConfig config = new SNOWAdapterConfig();
+    config.setUri("http://localhost:" + server.getAddress().getPort());
+    config.setUsername("admin");
+    config.setPassword("admin");
+    config.setBatchLookups(true);
+    config.setMaxInListSize(1); // one lookup per incident
+    config.setBatchWindowMillis(200);
+    adapter = new SNOWAdapter(config);
+  }
+
+  @After
+  public void tearDown() {
+    adapter.close();
+    server.stop(0);
+  }
+
+  private static void respond(HttpExchange exchange, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * One comment per incident of the element_idIN query
+   */
+  private static String comments(URI uri) {
+    String query = URLEncodedUtils.parse(uri, StandardCharsets.UTF_8).stream()
+      .filter(pair -> pair.getName().equals("sysparm_query")).findFirst().get().getValue();
+    JSONArray result = new JSONArray();
+    for (String incidentId : query.substring("element_idIN".length()).split(",")) {
+      JSONObject comment = new JSONObject();
+      comment.put("sys_id", "comment-" + incidentId);
+      comment.put("element_id", incidentId);
+      result.add(comment);
+    }
+    JSONObject page = new JSONObject();
+    page.put("result", result);
+    return page.toJSONString();
+  }
+
+  private static JSONArray incidents(int count) {
+    JSONArray incidents = new JSONArray();
+    for (int i = 0; i < count; i++) {
+      JSONObject incident = new JSONObject();
+      incident.put("sys_id", "inc" + i);
+      incidents.add(incident);
+    }
+    return incidents;
+  }
+
+  private static String commentId(Object incident) {
+    return (String) ((JSONObject) ((JSONArray) ((JSONObject) incident).get("_comments")).get(0)).get("sys_id");
+  }
+
+  @Test
+  public void testLookupsOfAPageShareOneBatch() {
+    JSONArray incidents = incidents(3);
+    adapter.fetchAndJoinCommentsForEntries(incidents);
+
+    Assert.assertEquals(Collections.singletonList(3), batchSizes);
+    Assert.assertTrue(directRequests.isEmpty());
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals("comment-inc" + i, commentId(incidents.get(i)));
+    }
+  }
+
+  @Test
+  public void testUnservicedLookupIsSentOnItsOwn() {
+    unserviced = "inc1";
+    JSONArray incidents = incidents(3);
+    adapter.fetchAndJoinCommentsForEntries(incidents);
+
+    Assert.assertEquals(Collections.singletonList(3), batchSizes);
+    Assert.assertEquals(1, directRequests.size());
+    Assert.assertTrue(directRequests.get(0).contains("inc1"));
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals("comment-inc" + i, commentId(incidents.get(i)));
+    }
+  }
+
+  @Test
+  public void testLookupsOfAFailedBatchAreSentOnTheirOwn() {
+    batchFails = true;
+    JSONArray incidents = incidents(2);
+    adapter.fetchAndJoinCommentsForEntries(incidents);
+
+    Assert.assertEquals(2, directRequests.size());
+    for (int i = 0; i < 2; i++) {
+      Assert.assertEquals("comment-inc" + i, commentId(incidents.get(i)));
+    }
+  }
+
+  @Test
+  public void testOnlyUnservicedRequestsAreReturnedEmpty() throws Exception {
+    String uri = "http://localhost";
+    SNOWBatcher batcher = new SNOWBatcher(uri, 0, 10, 5000, batchRequest -> {
+      JSONObject batchResponse = new JSONObject();
+      batchResponse.put("serviced_requests", new JSONArray());
+      JSONArray unservicedRequests = new JSONArray();
+      unservicedRequests.add(((JSONObject) ((JSONArray) batchRequest.get("rest_requests")).get(0)).get("id"));
+      batchResponse.put("unserviced_requests", unservicedRequests);
+      return Optional.of(batchResponse);
+    });
+    Assert.assertEquals(Optional.empty(), batcher.execute(new HttpGet(uri + "/api/now/table/incident")));
+
+    SNOWBatcher failing = new SNOWBatcher(uri, 0, 10, 5000, batchRequest -> Optional.empty());
+    try {
+      failing.execute(new HttpPost(uri + "/api/now/table/incident"));
+      Assert.fail("a create of a failed batch must not be reported as unserviced");
+    } catch (IOException e) {
+      // expected, the caller must not send it again
+    }
+  }
+
+  @Test
+  public void testBatchIsSentWhenTheFirstCallerIsInterrupted() throws Exception {
+    String uri = "http://localhost";
+    SNOWBatcher batcher = new SNOWBatcher(uri, 500, 10, 5000, batchRequest -> {
+      JSONObject batchResponse = new JSONObject();
+      batchResponse.put("serviced_requests", new JSONArray());
+      JSONArray unservicedRequests = new JSONArray();
+      for (Object restRequest : (JSONArray) batchRequest.get("rest_requests")) {
+        unservicedRequests.add(((JSONObject) restRequest).get("id"));
+      }
+      batchResponse.put("unserviced_requests", unservicedRequests);
+      return Optional.of(batchResponse);
+    });
+    Thread first = new Thread(() -> {
+      try {
+        batcher.execute(new HttpGet(uri + "/api/now/table/incident"));
+      } catch (Exception e) {
+        // interrupted
+      }
+    });
+    first.start();
+    Thread.sleep(100);
+    CompletableFuture<Optional<HttpResponse>> second = CompletableFuture.supplyAsync(() -> {
+      try {
+        return batcher.execute(new HttpGet(uri + "/api/now/table/problem"));
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    Thread.sleep(100);
+    first.interrupt();
+
+    Assert.assertEquals(Optional.empty(), second.get(5, TimeUnit.SECONDS));
+  }
+}
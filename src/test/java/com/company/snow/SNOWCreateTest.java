@@ -0,0 +1,121 @@
+package com.company.snow;
+
+import com.company.api.IAdapterResponse;
+import com.company.api.ISchemaMapping;
+import com.company.api.RequestStatus;
+import com.company.common.ContentType;
+import com.company.common.ContentTypeManager;
+import com.google.protobuf.Message;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * createTableEntries against a local stub of the Table API, that answers each create after a delay and fails the
+ * third one it receives
+ */
+public class SNOWCreateTest {
+
+  private HttpServer server;
+  private SNOWAdapter adapter;
+  private ContentType incidents;
+  private ISchemaMapping schemaMapping;
+  private final AtomicInteger received = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool()); // creates are answered concurrently
+    server.createContext("/api/now/table/incident", exchange -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      try {
+        JSONObject created;
+        try (InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+          created = (JSONObject) new JSONParser().parse(reader);
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+        Thread.sleep(100);
+        if (received.incrementAndGet() == 3) {
+          exchange.sendResponseHeaders(500, -1);
+          exchange.close();
+          return;
+        }
+        created.put("sys_id", "created" + received.get());
+        JSONObject response = new JSONObject();
+        response.put("result", created);
+        respond(exchange, response.toJSONString());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    });
+    server.start();
+
+    SNOWAdapterConfig config = new SNOWAdapterConfig();
+    config.setUri("http://localhost:" + server.getAddress().getPort());
+    config.setUsername("admin");
+    config.setPassword("admin");
+    config.setMaxConcurrentCreates(3);
+    config.setMaxRetries(0);
+    adapter = new SNOWAdapter(config);
+
+    incidents = ContentTypeManager.getInstance().getContentType("incident");
+    schemaMapping = SNOWDefaultMappings.get(incidents, "10000");
+  }
+
+  @After
+  public void tearDown() {
+    adapter.close();
+    server.stop(0);
+  }
+
+  private static void respond(HttpExchange exchange, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(201, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  @Test
+  public void testCreatesRunConcurrentlyAndFailOnTheirOwn() {
+    List<Message> records = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      records.add(TicketContent.newBuilder().setId("ticket" + i).build());
+    }
+
+    List<IAdapterResponse> responses = adapter.createTableEntries(records, incidents, schemaMapping);
+
+    Assert.assertEquals(records.size(), responses.size());
+    int failures = 0;
+    for (int i = 0; i < records.size(); i++) {
+      if (responses.get(i).getRequestStatus() == RequestStatus.Failed) {
+        failures++;
+      } else {
+        Assert.assertEquals("ticket" + i, responses.get(i).getCreatedId()); // in the order of the records
+      }
+    }
+    Assert.assertEquals(1, failures);
+    Assert.assertTrue(maxInFlight.get() > 1 && maxInFlight.get() <= 3);
+  }
+}
@@ -0,0 +1,113 @@
+package com.company.snow;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Time and bytes allocated per joined ticket by SNOWHashJoin, against the map-per-lookup join it replaced.
+ * Run by hand: java com.company.snow.SNOWHashJoinBenchmark [tickets per page] [pages]
+ * The bytes are those allocated by the benchmark thread, as reported by com.sun.management.ThreadMXBean.
+ */
+public class SNOWHashJoinBenchmark {
+
+  private static final String[] ID_COLUMNS = {"assigned_to", "caller_id", "opened_by", "resolved_by", "closed_by"};
+
+  public static void main(String[] args) {
+    int pageSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int pages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    Map<String, String> appendKeys = new LinkedHashMap<>();
+    for (String column : ID_COLUMNS) {
+      appendKeys.put(column, "_user_" + column);
+    }
+    JSONArray users = new JSONArray();
+    for (int i = 0; i < pageSize / 4; i++) {
+      JSONObject user = new JSONObject();
+      user.put("sys_id", "u" + i);
+      user.put("name", "User " + i);
+      users.add(user);
+    }
+
+    for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+      for (boolean kernel : new boolean[]{false, true}) {
+        long bytes = 0;
+        long nanos = 0;
+        for (int page = 0; page < pages; page++) {
+          JSONArray tickets = tickets(pageSize, users.size());
+          long startBytes = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+          long start = System.nanoTime();
+          if (kernel) {
+            SNOWHashJoin hashJoin = new SNOWHashJoin(tickets, appendKeys);
+            hashJoin.add(users, "sys_id");
+            hashJoin.join();
+          } else {
+            mapJoin(tickets, appendKeys, users);
+          }
+          nanos += System.nanoTime() - start;
+          bytes += threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+        }
+        if (round == 1) {
+          long records = (long) pageSize * pages;
+          System.out.printf("%-12s %8.1f ns/ticket %8.1f bytes/ticket%n", kernel ? "SNOWHashJoin" : "map join",
+            (double) nanos / records, (double) bytes / records);
+        }
+      }
+    }
+  }
+
+  private static JSONArray tickets(int pageSize, int userCount) {
+    JSONArray tickets = new JSONArray();
+    for (int i = 0; i < pageSize; i++) {
+      JSONObject ticket = new JSONObject();
+      ticket.put("sys_id", "t" + i);
+      for (int column = 0; column < ID_COLUMNS.length; column++) {
+        JSONObject reference = new JSONObject();
+        reference.put("value", "u" + (i * 7 + column) % userCount);
+        ticket.put(ID_COLUMNS[column], column == ID_COLUMNS.length - 1 && i % 2 == 0 ? "" : reference);
+      }
+      tickets.add(ticket);
+    }
+    return tickets;
+  }
+
+  /**
+   * The join as it was: ids read for the chunks, then read again per column to join, unsized maps
+   */
+  private static void mapJoin(JSONArray tickets, Map<String, String> appendKeys, JSONArray users) {
+    Set<String> entryIds = new LinkedHashSet<>();
+    for (Object entry : tickets) {
+      for (String entriesIdKey : appendKeys.keySet()) {
+        String entryId = SNOWHashJoin.getIdValue(((JSONObject) entry).get(entriesIdKey));
+        if (!entryId.isEmpty()) {
+          entryIds.add(entryId);
+        }
+      }
+    }
+    List<String> distinctIds = new ArrayList<>(entryIds); // chunked for the lookups
+
+    Map<String, JSONArray> fetchedMap = new HashMap<>();
+    for (Object user : users) {
+      String id = SNOWHashJoin.getIdValue(((JSONObject) user).get("sys_id"));
+      fetchedMap.computeIfAbsent(id, key -> new JSONArray()).add(user);
+    }
+    Map<String, JSONArray> joinMap = new HashMap<>();
+    fetchedMap.forEach((id, fetched) -> joinMap.computeIfAbsent(id, key -> new JSONArray()).addAll(fetched));
+
+    appendKeys.forEach((entriesIdKey, appendKey) -> tickets.forEach(entry -> {
+      JSONArray fetched = joinMap.get(SNOWHashJoin.getIdValue(((JSONObject) entry).get(entriesIdKey)));
+      if (fetched != null) {
+        ((JSONObject) entry).put(appendKey, fetched);
+      }
+    }));
+  }
+}
@@ -0,0 +1,67 @@
+package com.company.snow;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SNOWHashJoinTest {
+
+  private static JSONObject entry(Object... keyValues) {
+    JSONObject entry = new JSONObject();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      entry.put(keyValues[i], keyValues[i + 1]);
+    }
+    return entry;
+  }
+
+  @Test
+  public void testJoinsEveryColumnOnce() {
+    JSONObject reference = entry("value", "u2", "link", "https://fakeServer.service-now.com/api/now/table/sys_user/u2");
+    JSONArray tickets = new JSONArray();
+    tickets.add(entry("sys_id", "t1", "assigned_to", "u1", "caller_id", reference));
+    tickets.add(entry("sys_id", "t2", "assigned_to", "", "caller_id", "u1"));
+
+    Map<String, String> appendKeys = new LinkedHashMap<>();
+    appendKeys.put("assigned_to", "_user_assigned_to");
+    appendKeys.put("caller_id", "_user_reporter");
+    SNOWHashJoin hashJoin = new SNOWHashJoin(tickets, appendKeys);
+    Assert.assertEquals(Arrays.asList("u1", "u2"), hashJoin.getDistinctIds());
+
+    JSONArray users = new JSONArray();
+    users.add(entry("sys_id", "u1", "name", "Beth"));
+    users.add(entry("sys_id", "u2", "name", "Abel"));
+    users.add(entry("sys_id", "u3", "name", "not in the page"));
+    Assert.assertEquals(2, hashJoin.add(users, "sys_id"));
+    Assert.assertEquals(3, hashJoin.join());
+
+    JSONObject first = (JSONObject) tickets.get(0);
+    JSONObject second = (JSONObject) tickets.get(1);
+    Assert.assertEquals("Beth", ((JSONObject) ((JSONArray) first.get("_user_assigned_to")).get(0)).get("name"));
+    Assert.assertEquals("Abel", ((JSONObject) ((JSONArray) first.get("_user_reporter")).get(0)).get("name"));
+    Assert.assertFalse(second.containsKey("_user_assigned_to"));
+    Assert.assertEquals("Beth", ((JSONObject) ((JSONArray) second.get("_user_reporter")).get(0)).get("name"));
+  }
+
+  @Test
+  public void testLeavesEntriesWithoutFetchedEntriesAsIs() {
+    JSONArray incidents = new JSONArray();
+    incidents.add(entry("sys_id", "i1"));
+    incidents.add(entry("sys_id", "i2"));
+
+    SNOWHashJoin hashJoin = new SNOWHashJoin(incidents, Collections.singletonMap("sys_id", "_comments"));
+    JSONArray comments = new JSONArray();
+    comments.add(entry("sys_id", "c1", "element_id", "i2"));
+    comments.add(entry("sys_id", "c2", "element_id", "i2"));
+    hashJoin.add(comments, "element_id");
+    Assert.assertEquals(1, hashJoin.join());
+
+    Assert.assertFalse(((JSONObject) incidents.get(0)).containsKey("_comments"));
+    Assert.assertEquals(2, ((JSONArray) ((JSONObject) incidents.get(1)).get("_comments")).size());
+  }
+}
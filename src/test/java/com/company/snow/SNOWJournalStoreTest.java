@@ -0,0 +1,118 @@
+package com.company.snow;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class SNOWJournalStoreTest {
+
+  private final List<String> fetches = new ArrayList<>();
+  private Path directory;
+
+  @After
+  public void tearDown() throws IOException {
+    if (directory != null) {
+      SNOWReferenceStore.close(directory, "sys_journal_field.comments");
+      try (Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+      }
+    }
+  }
+
+  @Test
+  public void testOnlyTheCommentsOfUpdatedTicketsAreFetched() {
+    SNOWJournalStore store = new SNOWJournalStore(100, Optional.empty());
+    Assert.assertEquals(Arrays.asList("c1", "c2"), read(store, "t1", "2024-01-01 10:00:00",
+      fetcher("t1", comment("c1", "2024-01-01 09:00:00"), comment("c2", "2024-01-01 09:30:00"))));
+
+    Assert.assertEquals(Collections.singletonList("[t1]"), fetches);
+
+    // not updated since, served from the store
+    Assert.assertEquals(Arrays.asList("c1", "c2"), read(store, "t1", "2024-01-01 10:00:00", failingFetcher()));
+    Assert.assertEquals(1, fetches.size());
+
+    // updated, only the comments since the watermark are fetched; c2 was created in the watermark second
+    Assert.assertEquals(Arrays.asList("c1", "c2", "c3"), read(store, "t1", "2024-01-01 11:00:00",
+      fetcher("t1", comment("c2", "2024-01-01 09:30:00"), comment("c3", "2024-01-01 10:30:00"))));
+    Assert.assertEquals("[t1] since 2024-01-01 09:30:00", fetches.get(fetches.size() - 1));
+  }
+
+  @Test
+  public void testFailedLookupLeavesTheStoreAsItWas() {
+    SNOWJournalStore store = new SNOWJournalStore(100, Optional.empty());
+    read(store, "t1", "2024-01-01 10:00:00", fetcher("t1", comment("c1", "2024-01-01 09:00:00")));
+
+    Assert.assertFalse(store.read(Collections.singletonList("t1"),
+      Collections.singletonMap("t1", "2024-01-01 11:00:00"), failingFetcher()).isPresent());
+
+    JSONObject thread = store.get("t1").get();
+    Assert.assertEquals(Optional.of("2024-01-01 10:00:00"), SNOWJournalStore.getTicketUpdatedOn(thread));
+    Assert.assertEquals(Optional.of("2024-01-01 09:00:00"), SNOWJournalStore.getWatermark(thread));
+  }
+
+  @Test
+  public void testTicketsEvictedFromMemoryAreReadFromTheFile() throws IOException {
+    directory = Files.createTempDirectory("snow-journal");
+    SNOWJournalStore store = new SNOWJournalStore(1,
+      Optional.of(SNOWReferenceStore.get(directory, "sys_journal_field.comments")));
+    read(store, "t1", "2024-01-01 10:00:00", fetcher("t1", comment("c1", "2024-01-01 09:00:00")));
+    read(store, "t2", "2024-01-01 10:00:00", fetcher("t2", comment("c2", "2024-01-01 09:00:00")));
+
+    Assert.assertEquals(Collections.singletonList("c1"), read(store, "t1", "2024-01-01 10:00:00", failingFetcher()));
+  }
+
+  private List<String> read(SNOWJournalStore store, String ticketId, String ticketUpdatedOn,
+                            SNOWJournalStore.CommentFetcher fetcher) {
+    JSONArray comments = store.read(Collections.singletonList(ticketId),
+      Collections.singletonMap(ticketId, ticketUpdatedOn), fetcher).get();
+    return ((List<?>) comments).stream().map(comment -> (String) ((JSONObject) comment).get("sys_id"))
+      .collect(Collectors.toList());
+  }
+
+  private SNOWJournalStore.CommentFetcher fetcher(String ticketId, JSONObject... comments) {
+    return (ticketIds, since) -> {
+      Map<String, JSONArray> fetched = new HashMap<>();
+      if (ticketIds.isEmpty()) {
+        return Optional.of(fetched);
+      }
+      fetches.add(ticketIds + since.map(createdOn -> " since " + createdOn).orElse(""));
+      JSONArray thread = new JSONArray();
+      thread.addAll(Arrays.asList(comments));
+      fetched.put(ticketId, thread);
+      return Optional.of(fetched);
+    };
+  }
+
+  private SNOWJournalStore.CommentFetcher failingFetcher() {
+    return (ticketIds, since) -> {
+      if (ticketIds.isEmpty()) {
+        return Optional.of(new HashMap<>());
+      }
+      fetches.add(ticketIds.toString());
+      return Optional.empty();
+    };
+  }
+
+  private static JSONObject comment(String sysId, String createdOn) {
+    JSONObject comment = new JSONObject();
+    comment.put("sys_id", sysId);
+    comment.put("sys_created_on", createdOn);
+    return comment;
+  }
+}
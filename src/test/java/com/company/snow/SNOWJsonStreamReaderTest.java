@@ -0,0 +1,59 @@
+package com.company.snow;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SNOWJsonStreamReaderTest {
+
+  String pageStr = "{\"result\":[" +
+    "{\"sys_id\":\"9d385017c611228701d22104cc95c371\",\"number\":\"INC0000001\",\"reassignment_count\":2," +
+    "\"assigned_to\":{\"link\":\"https://fakeServer.service-now.com/api/now/table/sys_user/46d44a\",\"value\":\"46d44a\"}}," +
+    "{\"sys_id\":\"9c573169c611228700193229fff72400\",\"number\":\"INC0000002\",\"active\":true,\"score\":1.5," +
+    "\"cmdb_ci\":\"\",\"close_code\":null,\"watch_list\":[\"a\",\"b\"]}" +
+    "],\"extra\":{\"ignored\":[1,2,3]}}";
+
+  private InputStream stream(String str) {
+    return new ByteArrayInputStream(str.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testReadObjectMatchesJSONParser() throws Exception {
+    JSONObject expected = (JSONObject) new JSONParser().parse(pageStr);
+    JSONObject actual = SNOWJsonStreamReader.readObject(stream(pageStr));
+
+    Assert.assertEquals(expected, actual);
+    JSONObject first = (JSONObject) ((JSONArray) actual.get("result")).get(0);
+    Assert.assertTrue(first.get("assigned_to") instanceof JSONObject);
+    Assert.assertEquals(2L, first.get("reassignment_count"));
+  }
+
+  @Test
+  public void testReadResultHandsOverEachRecord() throws Exception {
+    List<JSONObject> records = new ArrayList<>();
+    long count = SNOWJsonStreamReader.readResult(stream(pageStr), records::add);
+
+    Assert.assertEquals(2, count);
+    Assert.assertEquals("INC0000001", records.get(0).get("number"));
+    Assert.assertEquals("INC0000002", records.get(1).get("number"));
+    Assert.assertTrue(records.get(1).containsKey("close_code"));
+    Assert.assertTrue(records.get(1).get("watch_list") instanceof JSONArray);
+  }
+
+  @Test
+  public void testReadResultSingleEntry() throws Exception {
+    List<JSONObject> records = new ArrayList<>();
+    long count = SNOWJsonStreamReader.readResult(stream("{\"result\":{\"sys_id\":\"abc\"}}"), records::add);
+
+    Assert.assertEquals(1, count);
+    Assert.assertEquals("abc", records.get(0).get("sys_id"));
+  }
+}
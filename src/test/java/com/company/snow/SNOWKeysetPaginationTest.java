@@ -0,0 +1,41 @@
+package com.company.snow;
+
+import org.apache.http.client.utils.URIBuilder;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.TimeZone;
+
+public class SNOWKeysetPaginationTest {
+
+  @Test
+  public void testKeysetOrderKeepsEveryQueryClause() throws Exception {
+    URI uri = new URIBuilder("https://instance/api/now/table/sc_req_item")
+      .addParameter("sysparm_query", "active=true")
+      .addParameter("sysparm_limit", "2")
+      .addParameter("sysparm_query", "requestISEMPTY")
+      .build();
+
+    URI firstPage = SNOWKeysetPagination.withKeysetOrder(uri);
+    Assert.assertEquals("active=true^requestISEMPTY^" + SNOWKeysetPagination.KEYSET_ORDER,
+      SNOWPartitionedReader.getQuery(firstPage));
+
+    JSONObject lastEntry = new JSONObject();
+    lastEntry.put("sys_updated_on", "2020-01-01 00:00:00");
+    lastEntry.put("sys_id", "s2");
+    URI nextPage = SNOWKeysetPagination.nextPage(firstPage, 2, lastEntry, TimeZone.getTimeZone("GMT-08:00")).get();
+    Assert.assertTrue(SNOWPartitionedReader.getQuery(nextPage)
+      .startsWith("active=true^requestISEMPTY^" + SNOWKeysetPagination.KEYSET_ORDER + "^sys_updated_on>="));
+  }
+
+  @Test
+  public void testDatesAreQueriedInTheTimeZoneOfTheUser() {
+    Assert.assertEquals("javascript:gs.dateGenerate('2019-12-31','16:00:00')",
+      SNOWKeysetPagination.dateValue("2020-01-01 00:00:00", TimeZone.getTimeZone("GMT-08:00")));
+    Assert.assertEquals("sys_updated_on>=javascript:gs.dateGenerate('2020-01-01','00:00:00')" +
+        "^sys_updated_on>javascript:gs.dateGenerate('2020-01-01','00:00:00')^ORsys_id>s2",
+      SNOWKeysetPagination.after("sys_updated_on", "2020-01-01 00:00:00", "s2", TimeZone.getTimeZone("UTC")));
+  }
+}
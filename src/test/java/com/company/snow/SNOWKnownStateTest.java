@@ -0,0 +1,94 @@
+package com.company.snow;
+
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SNOWKnownStateTest {
+
+  private final SNOWKnownState knownState = new SNOWKnownState(100, 60000);
+
+  @Test
+  public void testOnlyChangedFieldsAreKept() {
+    JSONObject read = new JSONObject();
+    read.put("sys_id", "s1");
+    read.put("state", "2");
+    read.put("short_description", "Printer down");
+    JSONObject assignedTo = new JSONObject();
+    assignedTo.put("link", "https://instance/api/now/table/sys_user/u1");
+    assignedTo.put("value", "u1");
+    read.put("assigned_to", assignedTo);
+    knownState.record("incident", read);
+
+    JSONObject update = new JSONObject();
+    update.put("state", "3");
+    update.put("short_description", "Printer down");
+    update.put("assigned_to", "u1");
+    update.put("urgency", "1"); // not read, kept
+    JSONObject changed = knownState.diffAndMerge("incident", "s1", update);
+
+    Assert.assertEquals(2, changed.size());
+    Assert.assertEquals("3", changed.get("state"));
+    Assert.assertEquals("1", changed.get("urgency"));
+  }
+
+  @Test
+  public void testUpdatesAreMergedAndForgottenOnFailure() {
+    JSONObject update = new JSONObject();
+    update.put("state", "3");
+    Assert.assertEquals(update, knownState.diffAndMerge("incident", "s1", update)); // unknown record, sent whole
+    Assert.assertTrue(knownState.diffAndMerge("incident", "s1", update).isEmpty());
+
+    knownState.forget("incident", "s1");
+    Assert.assertEquals(update, knownState.diffAndMerge("incident", "s1", update));
+  }
+
+  @Test
+  public void testUpdatesDoNotExtendTheTrustInARead() throws Exception {
+    SNOWKnownState shortLived = new SNOWKnownState(100, 300);
+    JSONObject read = new JSONObject();
+    read.put("sys_id", "s1");
+    read.put("state", "2");
+    shortLived.record("incident", read);
+
+    Thread.sleep(200);
+    JSONObject update = new JSONObject();
+    update.put("state", "3");
+    shortLived.diffAndMerge("incident", "s1", update);
+    Thread.sleep(200);
+
+    Assert.assertFalse(shortLived.get("incident", "s1").isPresent());
+    Assert.assertEquals(update, shortLived.diffAndMerge("incident", "s1", update)); // sent whole
+  }
+
+  @Test
+  public void testJournalFieldsAreAlwaysSent() {
+    JSONObject update = new JSONObject();
+    update.put("state", "3");
+    update.put("comments", "Escalated");
+    knownState.diffAndMerge("incident", "s1", update);
+
+    JSONObject changed = knownState.diffAndMerge("incident", "s1", update);
+    Assert.assertEquals(1, changed.size());
+    Assert.assertEquals("Escalated", changed.get("comments"));
+    Assert.assertFalse(knownState.get("incident", "s1").get().containsKey("comments"));
+  }
+
+  @Test
+  public void testFieldSetBackToItsReadValueIsNotSent() {
+    JSONObject read = new JSONObject();
+    read.put("sys_id", "s1");
+    read.put("state", "2");
+    read.put("priority", "3");
+    knownState.record("incident", read);
+
+    // another writer changed priority to 1 on the instance since the read, the update sets it back to 3
+    JSONObject update = new JSONObject();
+    update.put("state", "6");
+    update.put("priority", "3");
+    JSONObject changed = knownState.diffAndMerge("incident", "s1", update);
+
+    Assert.assertEquals(1, changed.size()); // the last writer loses, priority stays 1
+    Assert.assertEquals("6", changed.get("state"));
+  }
+}
@@ -0,0 +1,28 @@
+package com.company.snow;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class SNOWPageSizeControllerTest {
+
+  @Test
+  public void testAdaptersWithOtherBoundsSizeTheirPagesApart() {
+    SNOWAdapterConfig small = new SNOWAdapterConfig();
+    small.setUri("https://sizes.service-now.com");
+    small.setMaxPageSize(100);
+    SNOWAdapterConfig large = new SNOWAdapterConfig();
+    large.setUri(small.getUri());
+    large.setMaxPageSize(5000);
+
+    SNOWPageSizeController smallController = SNOWPageSizeController.get(small, "incident", 1000);
+    SNOWPageSizeController largeController = SNOWPageSizeController.get(large, "incident", 1000);
+
+    Assert.assertEquals(100, smallController.getPageSize());
+    Assert.assertEquals(1000, largeController.getPageSize());
+    Assert.assertSame(smallController, SNOWPageSizeController.get(small, "incident", 1000));
+    Assert.assertEquals(Collections.singletonMap("https://sizes.service-now.com/incident", 100),
+      SNOWPageSizeController.getPageSizes(small));
+  }
+}
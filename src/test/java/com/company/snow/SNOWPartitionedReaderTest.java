@@ -0,0 +1,116 @@
+package com.company.snow;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+public class SNOWPartitionedReaderTest {
+
+  @Test
+  public void testStableOrderKeepsEveryQueryClause() throws Exception {
+    URI uri = new URIBuilder("https://instance/api/now/table/sc_req_item")
+      .addParameter("sysparm_query", "active=true")
+      .addParameter("sysparm_limit", "100")
+      .addParameter("sysparm_query", "short_descriptionLIKEprinter")
+      .build();
+
+    URI ordered = SNOWPartitionedReader.withStableOrder(uri);
+
+    Assert.assertEquals("active=true^short_descriptionLIKEprinter^" + SNOWPartitionedReader.STABLE_ORDER,
+      SNOWPartitionedReader.getQuery(ordered));
+    Assert.assertEquals(1, new URIBuilder(ordered).getQueryParams().stream()
+      .filter(pair -> pair.getName().equals("sysparm_query")).count());
+  }
+
+  @Test
+  public void testSortWithTiesIsOrderedBySysIdToo() throws Exception {
+    URI uri = new URIBuilder("https://instance/api/now/table/incident")
+      .addParameter("sysparm_query", "active=true^ORDERBYDESCpriority")
+      .build();
+
+    Assert.assertEquals("active=true^ORDERBYDESCpriority^ORDERBYsys_id",
+      SNOWPartitionedReader.getQuery(SNOWPartitionedReader.withStableOrder(uri)));
+  }
+
+  @Test
+  public void testRecordsAreDeliveredExactlyOnceWhileOthersAreInsertedAndDeleted() throws Exception {
+    // pairs of records created in the same second, to be told apart by sys_id
+    List<String[]> table = new ArrayList<>();
+    List<String> records = new ArrayList<>();
+    for (int i = 10; i < 30; i++) {
+      table.add(new String[]{"2024-01-02 00:00:" + (10 + i / 2), "r" + i});
+      records.add("r" + i);
+    }
+    int[] fetches = new int[1];
+    List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+    URI firstPageUri = SNOWPartitionedReader.withStableOrder(
+      new URI("https://instance/api/now/table/incident?sysparm_query=active%3Dtrue&sysparm_limit=3"));
+
+    new SNOWPartitionedReader("https://instance", 3, 8, TimeZone.getTimeZone("UTC")).read(firstPageUri, pageUri -> {
+      synchronized (table) {
+        // every other request inserts a record before all the others, shifting their offsets, and the next deletes it
+        if (++fetches[0] % 2 == 1) {
+          table.add(0, new String[]{"2024-01-01 00:00:00", String.format("i%02d", fetches[0])});
+        } else {
+          table.remove(0);
+        }
+        return fetch(table, pageUri);
+      }
+    }, page -> ((JSONArray) page.get("result"))
+      .forEach(entry -> delivered.add((String) ((JSONObject) entry).get("sys_id"))));
+
+    Assert.assertEquals(new HashSet<>(delivered).size(), delivered.size());
+    Assert.assertTrue(delivered.containsAll(records));
+  }
+
+  // evaluates the offset, limit and key range clauses of a page request on the table, ordered by its key
+  private static ImmutablePair<Optional<JSONObject>, String> fetch(List<String[]> table, URI pageUri) {
+    Map<String, String> params = new HashMap<>();
+    URLEncodedUtils.parse(pageUri, StandardCharsets.UTF_8).forEach(pair -> params.put(pair.getName(), pair.getValue()));
+    String query = params.get("sysparm_query");
+    String date = "javascript:gs.dateGenerate\\('([^']+)','([^']+)'\\)";
+    Matcher after = Pattern.compile("sys_created_on>=" + date + "\\^[^^]+\\^ORsys_id>([^^]+)").matcher(query);
+    Matcher upTo = Pattern.compile("sys_created_on<=" + date + "\\^[^^]+\\^ORsys_id<=([^^]+)").matcher(query);
+    String afterKey = after.find() ? after.group(1) + " " + after.group(2) + after.group(3) : null;
+    String upToKey = upTo.find() ? upTo.group(1) + " " + upTo.group(2) + upTo.group(3) : null;
+    List<String[]> rows = table.stream()
+      .filter(row -> afterKey == null || (row[0] + row[1]).compareTo(afterKey) > 0)
+      .filter(row -> upToKey == null || (row[0] + row[1]).compareTo(upToKey) <= 0)
+      .sorted(Comparator.comparing((String[] row) -> row[0] + row[1]))
+      .collect(Collectors.toList());
+
+    int offset = Integer.parseInt(params.getOrDefault("sysparm_offset", "0"));
+    int limit = Integer.parseInt(params.get("sysparm_limit"));
+    JSONArray result = new JSONArray();
+    for (String[] row : rows.subList(Math.min(offset, rows.size()), Math.min(offset + limit, rows.size()))) {
+      JSONObject entry = new JSONObject();
+      entry.put("sys_created_on", row[0]);
+      entry.put("sys_id", row[1]);
+      result.add(entry);
+    }
+    JSONObject page = new JSONObject();
+    page.put("result", result);
+    int lastOffset = Math.max(0, (rows.size() - 1) / limit * limit);
+    String lastLink = "https://instance/api/now/table/incident?sysparm_offset=" + lastOffset;
+    return new ImmutablePair<>(Optional.of(page), lastLink);
+  }
+}
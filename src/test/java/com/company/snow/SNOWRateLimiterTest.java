@@ -0,0 +1,34 @@
+package com.company.snow;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SNOWRateLimiterTest {
+
+  @Test
+  public void testServiceUnavailableIsRetriedOnlyForIdempotentRequests() {
+    SNOWAdapterConfig config = new SNOWAdapterConfig();
+    config.setUri("https://retries.service-now.com");
+    config.setInitialBackoffMillis(10);
+    SNOWRateLimiter rateLimiter = SNOWRateLimiter.get(config);
+    String uri = config.getUri() + "/api/now/table/incident";
+
+    Assert.assertTrue(rateLimiter.getRetryDelay(new HttpGet(uri), response(503), 0).isPresent());
+    Assert.assertFalse(rateLimiter.getRetryDelay(new HttpPost(uri), response(503), 0).isPresent());
+    Assert.assertFalse(rateLimiter.getRetryDelay(new HttpPatch(uri + "/s1"), response(503), 0).isPresent());
+
+    // refused before it ran
+    Assert.assertTrue(rateLimiter.getRetryDelay(new HttpPost(uri), response(429), 0).isPresent());
+    Assert.assertFalse(rateLimiter.getRetryDelay(new HttpPost(uri), response(429), config.getMaxRetries()).isPresent());
+  }
+
+  private static HttpResponse response(int statusCode) {
+    return new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, "");
+  }
+}
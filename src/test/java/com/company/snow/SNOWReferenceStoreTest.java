@@ -0,0 +1,128 @@
+package com.company.snow;
+
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+public class SNOWReferenceStoreTest {
+
+  private Path directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("snow-store");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    SNOWReferenceStore.close(directory, "sys_user");
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  @Test
+  public void testEntriesAreReadAgainAfterARestart() {
+    SNOWReferenceStore store = SNOWReferenceStore.get(directory, "sys_user");
+    store.put(user("u1", "Ann", "2024-01-01 10:00:00"));
+    store.put(user("u2", "Bob", "2024-01-01 11:00:00"));
+    store.put(user("u1", "Anna", "2024-01-01 12:00:00"));
+
+    SNOWReferenceStore reloaded = restart();
+    Assert.assertEquals(2, reloaded.size());
+    Assert.assertEquals("Anna", reloaded.get("u1").get().get("name"));
+    Assert.assertEquals("Bob", reloaded.get("u2").get().get("name"));
+  }
+
+  @Test
+  public void testTornLastLineIsDropped() throws IOException {
+    SNOWReferenceStore store = SNOWReferenceStore.get(directory, "sys_user");
+    store.put(user("u1", "Ann", "2024-01-01 10:00:00"));
+    SNOWReferenceStore.close(directory, "sys_user");
+    append("{\"sys_id\":\"u2\",\"na");
+
+    SNOWReferenceStore reloaded = SNOWReferenceStore.get(directory, "sys_user");
+    Assert.assertEquals(1, reloaded.size());
+    Assert.assertFalse(reloaded.contains("u2"));
+
+    reloaded.put(user("u3", "Cid", "2024-01-01 11:00:00")); // written where the torn line was
+    Assert.assertEquals("Cid", restart().get("u3").get().get("name"));
+  }
+
+  @Test
+  public void testInvalidLineIsSkipped() throws IOException {
+    SNOWReferenceStore store = SNOWReferenceStore.get(directory, "sys_user");
+    store.put(user("u1", "Ann", "2024-01-01 10:00:00"));
+    SNOWReferenceStore.close(directory, "sys_user");
+    append("not json\n");
+    append(user("u2", "Bob", "2024-01-01 11:00:00").toJSONString() + "\n");
+
+    SNOWReferenceStore reloaded = SNOWReferenceStore.get(directory, "sys_user");
+    Assert.assertEquals(2, reloaded.size());
+    Assert.assertEquals("Bob", reloaded.get("u2").get().get("name"));
+  }
+
+  @Test
+  public void testSupersededLinesAreCompactedWhileRunning() {
+    SNOWReferenceStore store = SNOWReferenceStore.get(directory, "sys_user");
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      name.append('x');
+    }
+    for (int i = 0; i < 5000; i++) { // about 5MB written
+      store.put(user("u" + (i % 2), name.toString() + i, "2024-01-01 10:00:00"));
+      Assert.assertEquals(name.toString() + i, store.get("u" + (i % 2)).get().get("name"));
+    }
+    Assert.assertTrue(directory.resolve("sys_user.jsonl").toFile().length() < 1100 * 1024);
+
+    SNOWReferenceStore reloaded = restart();
+    Assert.assertEquals(2, reloaded.size());
+    Assert.assertEquals(name.toString() + 4998, reloaded.get("u0").get().get("name"));
+    Assert.assertEquals(name.toString() + 4999, reloaded.get("u1").get().get("name"));
+  }
+
+  @Test
+  public void testOnlyASyncMovesTheWatermark() {
+    SNOWReferenceStore store = SNOWReferenceStore.get(directory, "sys_user");
+    Assert.assertFalse(store.getWatermark().isPresent());
+    store.put(user("u1", "Ann", "2024-01-01 10:00:00"));
+    Assert.assertEquals(Optional.of("2024-01-01 10:00:00"), store.getWatermark());
+
+    // a lookup miss stored later, u1 may have been updated since without the store knowing
+    store.put(user("u2", "Bob", "2024-01-02 10:00:00"));
+    Assert.assertEquals(Optional.of("2024-01-01 10:00:00"), store.getWatermark());
+
+    store.advanceWatermark("2024-01-03 10:00:00");
+    store.advanceWatermark("2024-01-02 10:00:00"); // never moves back
+    Assert.assertEquals(Optional.of("2024-01-03 10:00:00"), store.getWatermark());
+    Assert.assertEquals(Optional.of("2024-01-03 10:00:00"), restart().getWatermark());
+  }
+
+  private SNOWReferenceStore restart() {
+    SNOWReferenceStore.close(directory, "sys_user");
+    return SNOWReferenceStore.get(directory, "sys_user");
+  }
+
+  private void append(String text) throws IOException {
+    Files.write(directory.resolve("sys_user.jsonl"), text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+  }
+
+  private static JSONObject user(String sysId, String name, String updatedOn) {
+    JSONObject user = new JSONObject();
+    user.put("sys_id", sysId);
+    user.put("name", name);
+    user.put("sys_updated_on", updatedOn);
+    return user;
+  }
+}
@@ -0,0 +1,57 @@
+package com.company.snow;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SNOWTokenManagerTest {
+
+  private HttpServer server;
+  private CloseableHttpClient httpClient;
+  private final AtomicInteger tokenRequests = new AtomicInteger();
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/oauth_token.do", exchange -> {
+      tokenRequests.incrementAndGet();
+      exchange.getResponseHeaders().add("Connection", "close");
+      exchange.sendResponseHeaders(401, -1);
+      exchange.close();
+    });
+    server.start();
+    httpClient = HttpClients.createDefault();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    httpClient.close();
+    server.stop(0);
+  }
+
+  @Test
+  public void testFailedRefreshIsNotTriedAgainBeforeTheBackoff() throws Exception {
+    SNOWAdapterConfig config = new SNOWAdapterConfig();
+    config.setUri("http://localhost:" + server.getAddress().getPort());
+    config.setRefreshToken("refresh");
+    config.setInitialBackoffMillis(200);
+    SNOWTokenManager tokenManager = new SNOWTokenManager(config, httpClient);
+
+    for (int i = 0; i < 10; i++) {
+      Assert.assertNull(tokenManager.getAccessToken());
+    }
+    Assert.assertEquals(1, tokenRequests.get());
+
+    Thread.sleep(300);
+    Assert.assertFalse(tokenManager.refresh());
+    Assert.assertEquals(2, tokenRequests.get());
+  }
+}
@@ -0,0 +1,81 @@
+package com.company.snow;
+
+import com.company.api.BaseAdapterResponse;
+import com.company.api.IAdapterResponse;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class SNOWUpdateQueueTest {
+
+  private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+  private final SNOWUpdateQueue queue = new SNOWUpdateQueue(100, (table, sysId, fields) -> {
+    sent.add(table + "/" + sysId + " " + fields.toJSONString());
+    return CompletableFuture.completedFuture(BaseAdapterResponse.successResponse(fields, null));
+  });
+
+  private static JSONObject fields(String key, String value) {
+    JSONObject fields = new JSONObject();
+    fields.put(key, value);
+    return fields;
+  }
+
+  @Test
+  public void testUpdatesOfARecordWithinTheWindowAreSentAsOne() throws Exception {
+    CompletableFuture<IAdapterResponse> first = queue.update("incident", "s1", fields("state", "2"));
+    CompletableFuture<IAdapterResponse> second = queue.update("incident", "s1", fields("assigned_to", "u1"));
+    CompletableFuture<IAdapterResponse> third = queue.update("incident", "s1", fields("state", "3"));
+    CompletableFuture<IAdapterResponse> other = queue.update("incident", "s2", fields("state", "6"));
+
+    IAdapterResponse response = first.get(5, TimeUnit.SECONDS);
+    Assert.assertSame(response, second.get(5, TimeUnit.SECONDS));
+    Assert.assertSame(response, third.get(5, TimeUnit.SECONDS));
+    Assert.assertEquals("3", response.getJSONObject().get("state"));
+    Assert.assertEquals("u1", response.getJSONObject().get("assigned_to"));
+    other.get(5, TimeUnit.SECONDS);
+    Assert.assertEquals(2, sent.size());
+  }
+
+  @Test
+  public void testCommentsWithinTheWindowAreEachSent() throws Exception {
+    CompletableFuture<IAdapterResponse> first = queue.update("incident", "s1", fields("comments", "first"));
+    CompletableFuture<IAdapterResponse> second = queue.update("incident", "s1", fields("comments", "second"));
+
+    Assert.assertEquals("first", first.get(5, TimeUnit.SECONDS).getJSONObject().get("comments"));
+    Assert.assertEquals("second", second.get(5, TimeUnit.SECONDS).getJSONObject().get("comments"));
+    Assert.assertEquals(Arrays.asList("incident/s1 {\"comments\":\"first\"}", "incident/s1 {\"comments\":\"second\"}"),
+      sent);
+  }
+
+  @Test
+  public void testUpdateNowDoesNotWaitForTheWindow() throws Exception {
+    SNOWUpdateQueue slowQueue = new SNOWUpdateQueue(60000, (table, sysId, fields) -> {
+      sent.add(table + "/" + sysId + " " + fields.toJSONString());
+      return CompletableFuture.completedFuture(BaseAdapterResponse.successResponse(fields, null));
+    });
+    CompletableFuture<IAdapterResponse> queued = slowQueue.update("incident", "s1", fields("state", "2"));
+    CompletableFuture<IAdapterResponse> now = slowQueue.updateNow("incident", "s1", fields("assigned_to", "u1"));
+
+    IAdapterResponse response = now.get(1, TimeUnit.SECONDS);
+    Assert.assertSame(response, queued.get(1, TimeUnit.SECONDS));
+    Assert.assertEquals("2", response.getJSONObject().get("state"));
+    Assert.assertEquals(1, sent.size());
+  }
+
+  @Test
+  public void testDrainSendsPendingUpdates() {
+    CompletableFuture<IAdapterResponse> update = queue.update("incident", "s1", fields("state", "2"));
+    queue.drain(5000);
+
+    Assert.assertTrue(update.isDone());
+    Assert.assertEquals(Collections.singletonList("incident/s1 {\"state\":\"2\"}"), sent);
+  }
+}